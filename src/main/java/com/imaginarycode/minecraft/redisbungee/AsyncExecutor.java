@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded thread pool behind {@link RedisBungeeAsyncAPI}, counting what it does so that /rstats can show it.
+ * <p>
+ * Once the queue is full, new tasks are rejected rather than run on the caller, which is usually an event thread.
+ */
+class AsyncExecutor extends ThreadPoolExecutor {
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final ThreadLocal<Long> started = new ThreadLocal<>();
+
+    AsyncExecutor(int threads, int capacity) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RedisBungee Async API #" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("RedisBungee async API queue is full");
+            }
+        });
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        started.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        busyNanos.addAndGet(System.nanoTime() - started.get());
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * The average time spent running a task, in the given unit.
+     */
+    long getAverageTaskTime(TimeUnit unit) {
+        long completed = getCompletedTaskCount();
+        return completed == 0 ? 0 : unit.convert(busyNanos.get() / completed, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.*;
+
+/**
+ * An immutable set of UUIDs kept as pairs of {@code long}s in an open-addressed table, instead of as {@link UUID} objects
+ * in hash entries.
+ * <p>
+ * Lookups never allocate. {@link UUID} objects are only created as the set is iterated, so a snapshot that is mostly
+ * asked {@link #contains(Object)} or {@link #size()} costs two {@code long}s per slot and nothing else. The nil UUID is
+ * what marks an empty slot, so it is tracked on its own.
+ */
+final class CompactUUIDSet extends AbstractSet<UUID> {
+    private long[] most;
+    private long[] least;
+    private int mask;
+    private int size = 0;
+    private int hashCode = 0;
+    private boolean containsNil = false;
+
+    private CompactUUIDSet(int expectedSize) {
+        // Keep the table at most half full, so that probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+        most = new long[capacity];
+        least = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    static CompactUUIDSet copyOf(Collection<UUID> uuids) {
+        CompactUUIDSet set = new CompactUUIDSet(uuids.size());
+        // The collection may be a concurrent one that grows while we copy it, so do not rely on its size.
+        for (UUID uuid : uuids)
+            set.insert(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return set;
+    }
+
+    private void insert(long msb, long lsb) {
+        if (msb == 0 && lsb == 0) {
+            if (!containsNil) {
+                containsNil = true;
+                size++;
+            }
+            return;
+        }
+        int slot = slot(msb, lsb, mask);
+        while (most[slot] != 0 || least[slot] != 0) {
+            if (most[slot] == msb && least[slot] == lsb)
+                return;
+            slot = (slot + 1) & mask;
+        }
+        most[slot] = msb;
+        least[slot] = lsb;
+        size++;
+        // Matches UUID.hashCode(), so that we are equal to, and hash like, any other set of the same UUIDs.
+        long hilo = msb ^ lsb;
+        hashCode += (int) (hilo >> 32) ^ (int) hilo;
+        if (size * 2 > most.length)
+            grow();
+    }
+
+    private void grow() {
+        long[] oldMost = most;
+        long[] oldLeast = least;
+        most = new long[oldMost.length * 2];
+        least = new long[oldLeast.length * 2];
+        mask = most.length - 1;
+        for (int i = 0; i < oldMost.length; i++) {
+            if (oldMost[i] == 0 && oldLeast[i] == 0)
+                continue;
+            int slot = slot(oldMost[i], oldLeast[i], mask);
+            while (most[slot] != 0 || least[slot] != 0)
+                slot = (slot + 1) & mask;
+            most[slot] = oldMost[i];
+            least[slot] = oldLeast[i];
+        }
+    }
+
+    private static int slot(long msb, long lsb, int mask) {
+        // Random UUIDs hash well on their own, but name-based ones from offline mode need not.
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof UUID))
+            return false;
+        UUID uuid = (UUID) o;
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0)
+            return containsNil;
+        int slot = slot(msb, lsb, mask);
+        while (most[slot] != 0 || least[slot] != 0) {
+            if (most[slot] == msb && least[slot] == lsb)
+                return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public Iterator<UUID> iterator() {
+        return new Iterator<UUID>() {
+            private int slot = -1;
+            private boolean nilReturned = !containsNil;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                do {
+                    slot++;
+                } while (slot < most.length && most[slot] == 0 && least[slot] == 0);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < most.length || !nilReturned;
+            }
+
+            @Override
+            public UUID next() {
+                if (slot < most.length) {
+                    UUID uuid = new UUID(most[slot], least[slot]);
+                    advance();
+                    return uuid;
+                }
+                if (!nilReturned) {
+                    nilReturned = true;
+                    return new UUID(0, 0);
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
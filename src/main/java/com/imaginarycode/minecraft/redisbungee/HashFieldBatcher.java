@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Collects {@code HGET}s issued close together and sends them to Redis as one pipeline.
+ * <p>
+ * While one pipeline is in flight, the next requests queue up behind it and go out together once it returns, so the
+ * batches grow with load without adding any delay when idle.
+ */
+class HashFieldBatcher implements Runnable {
+    private final RedisBungee plugin;
+    private final BlockingQueue<Request> queue;
+    private final int maxBatchSize;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    HashFieldBatcher(RedisBungee plugin, int capacity, int maxBatchSize) {
+        this.plugin = plugin;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    ListenableFuture<String> hget(byte[] key, byte[] field) {
+        Request request = new Request(key, field);
+        if (stopped || !queue.offer(request))
+            return Futures.immediateFailedFuture(new RejectedExecutionException("RedisBungee batch queue is full"));
+        return request.getFuture();
+    }
+
+    long getBatchCount() {
+        return batches.get();
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<Request> batch = new ArrayList<>();
+            while (!stopped || !queue.isEmpty()) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    // Fail this batch, not the batcher; later requests may well succeed.
+                    plugin.getLogger().log(Level.SEVERE, "Unable to read batch", e);
+                    for (Request request : batch)
+                        request.getFuture().setException(e);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Request request;
+            while ((request = queue.poll()) != null)
+                request.getFuture().setException(new RejectedExecutionException("RedisBungee is shutting down"));
+            finished.countDown();
+        }
+    }
+
+    private void send(List<Request> batch) {
+        batches.incrementAndGet();
+        requests.addAndGet(batch.size());
+        List<Response<byte[]>> responses = new ArrayList<>(batch.size());
+        Jedis jedis = null;
+        try {
+            jedis = plugin.getPool().getResource();
+            Pipeline pipeline = jedis.pipelined();
+            for (Request request : batch)
+                responses.add(pipeline.hget(request.getKey(), request.getField()));
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to read batch - did your Redis server go away?", e);
+            if (jedis != null)
+                plugin.getPool().returnBrokenResource(jedis);
+            for (Request request : batch)
+                request.getFuture().setException(e);
+            return;
+        } catch (JedisException e) {
+            for (Request request : batch)
+                request.getFuture().setException(e);
+            return;
+        } finally {
+            if (jedis != null)
+                plugin.getPool().returnResource(jedis);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                byte[] value = responses.get(i).get();
+                batch.get(i).getFuture().set(value == null ? null : SafeEncoder.encode(value));
+            } catch (JedisException e) {
+                batch.get(i).getFuture().setException(e);
+            }
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        try {
+            finished.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class Request {
+        private final byte[] key;
+        private final byte[] field;
+        private final SettableFuture<String> future = SettableFuture.create();
+    }
+}
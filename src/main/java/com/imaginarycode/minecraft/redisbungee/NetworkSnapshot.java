@@ -0,0 +1,38 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import lombok.Getter;
+
+/**
+ * An immutable view of the live proxies and the network-wide player count, taken once per heartbeat.
+ * <p>
+ * A new snapshot replaces the old one wholesale, so readers never need to lock.
+ */
+@Getter
+class NetworkSnapshot {
+    private final ImmutableList<String> proxies;
+    private final ImmutableSet<String> proxySet;
+    private final int playerCount;
+    /**
+     * The Redis server's clock, in milliseconds, when this snapshot was taken.
+     */
+    private final long redisTime;
+
+    NetworkSnapshot(ImmutableList<String> proxies, int playerCount, long redisTime) {
+        this.proxies = proxies;
+        this.proxySet = ImmutableSet.copyOf(proxies);
+        this.playerCount = playerCount;
+        this.redisTime = redisTime;
+    }
+
+    boolean isAlive(String proxy) {
+        return proxySet.contains(proxy);
+    }
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.events.NetworkPlayerJoinEvent;
+import com.imaginarycode.minecraft.redisbungee.events.NetworkPlayerQuitEvent;
+import com.imaginarycode.minecraft.redisbungee.events.NetworkServerSwitchEvent;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
+import net.md_5.bungee.api.plugin.Event;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * A local replica of which proxy and server every player on the network is connected to.
+ * <p>
+ * The replica is bootstrapped from Redis once, then kept current by the deltas that {@link RedisBungeeConsumer}
+ * publishes on {@link #DELTA_CHANNEL}. A periodic resync compares per-proxy and per-server counts with Redis and
+ * reloads on drift, and reloads in full every few minutes regardless.
+ * <p>
+ * Every delta that changes the replica is also posted to plugins as a {@link NetworkPlayerJoinEvent},
+ * {@link NetworkPlayerQuitEvent} or {@link NetworkServerSwitchEvent}. The events for one delta message are queued as a
+ * single batch on the PubSub workers, so they are posted in order without holding up the subscriber.
+ * <p>
+ * Every change also bumps a version number. The sets and maps handed out to callers are immutable snapshots built
+ * from the replica, and are reused until the version moves on, so asking for them again between changes is free.
+ */
+class NetworkState {
+    static final String DELTA_CHANNEL = "redisbungee-data";
+    private static final Splitter LINE_SPLITTER = Splitter.on('\n').omitEmptyStrings();
+    // Resyncs run every 30 seconds, so this is a full reload every five minutes.
+    private static final int FULL_RELOAD_INTERVAL = 10;
+
+    private final RedisBungee plugin;
+    private final ConcurrentMap<UUID, String> proxies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, String> servers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<UUID>> serverPlayers = new ConcurrentHashMap<>();
+    private Set<String> drifted = Collections.emptySet();
+    private int resyncs = 0;
+    // Whether a bootstrap has filled the replica yet. Guarded by this.
+    private boolean loaded = false;
+    // Deltas held back while a bootstrap reads Redis, or null if none is running. Guarded by this. We start out
+    // holding them back, as the first bootstrap only runs once we are subscribed.
+    private List<String> buffered = new ArrayList<>();
+    // Only changed while holding the lock on this, but read without it.
+    private volatile long version = 0;
+    private volatile Versioned<Set<UUID>> playersSnapshot;
+    private volatile Versioned<Multimap<String, UUID>> serversToPlayersSnapshot;
+    private final ConcurrentMap<String, Versioned<Set<UUID>>> serverSnapshots = new ConcurrentHashMap<>();
+
+    NetworkState(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    static String join(String proxy, UUID uuid) {
+        return "J\t" + proxy + "\t" + uuid;
+    }
+
+    static String quit(String proxy, UUID uuid) {
+        return "Q\t" + proxy + "\t" + uuid;
+    }
+
+    static String serverChange(String proxy, UUID uuid, String server) {
+        return "S\t" + proxy + "\t" + uuid + "\t" + server;
+    }
+
+    final Set<UUID> getPlayers() {
+        // Read the version first: a change made while we copy leaves the snapshot stale, so the next call rebuilds it.
+        long current = version;
+        Versioned<Set<UUID>> snapshot = playersSnapshot;
+        if (snapshot == null || snapshot.getVersion() != current)
+            playersSnapshot = snapshot = new Versioned<Set<UUID>>(current, CompactUUIDSet.copyOf(proxies.keySet()));
+        return snapshot.getValue();
+    }
+
+    final String getProxy(UUID uuid) {
+        return proxies.get(uuid);
+    }
+
+    final String getServer(UUID uuid) {
+        return servers.get(uuid);
+    }
+
+    final Set<UUID> getPlayersOnServer(String server) {
+        long current = version;
+        Versioned<Set<UUID>> snapshot = serverSnapshots.get(server);
+        if (snapshot == null || snapshot.getVersion() != current) {
+            Set<UUID> players = serverPlayers.get(server);
+            snapshot = new Versioned<Set<UUID>>(current, players == null ? Collections.<UUID>emptySet() : CompactUUIDSet.copyOf(players));
+            serverSnapshots.put(server, snapshot);
+        }
+        return snapshot.getValue();
+    }
+
+    final int getPlayerCountOnServer(String server) {
+        Set<UUID> players = serverPlayers.get(server);
+        return players == null ? 0 : players.size();
+    }
+
+    final Multimap<String, UUID> serversToPlayers() {
+        long current = version;
+        Versioned<Multimap<String, UUID>> snapshot = serversToPlayersSnapshot;
+        if (snapshot == null || snapshot.getVersion() != current) {
+            ImmutableMultimap.Builder<String, UUID> multimapBuilder = ImmutableMultimap.builder();
+            for (Map.Entry<String, Set<UUID>> entry : serverPlayers.entrySet())
+                multimapBuilder.putAll(entry.getKey(), entry.getValue());
+            serversToPlayersSnapshot = snapshot = new Versioned<Multimap<String, UUID>>(current, multimapBuilder.build());
+        }
+        return snapshot.getValue();
+    }
+
+    // Changes on this proxy are applied straight away, and the deltas for them are ignored when they come back to us.
+    void playerJoined(String proxy, UUID uuid) {
+        List<Event> events = new ArrayList<>(1);
+        playerJoined(proxy, uuid, events);
+        post(events);
+    }
+
+    void playerQuit(String proxy, UUID uuid) {
+        List<Event> events = new ArrayList<>(1);
+        playerQuit(proxy, uuid, events);
+        post(events);
+    }
+
+    void playerChangedServer(String proxy, UUID uuid, String server) {
+        List<Event> events = new ArrayList<>(1);
+        playerChangedServer(proxy, uuid, server, events);
+        post(events);
+    }
+
+    private synchronized void playerJoined(String proxy, UUID uuid, List<Event> events) {
+        if (!proxy.equals(proxies.put(uuid, proxy))) {
+            version++;
+            events.add(new NetworkPlayerJoinEvent(uuid, proxy));
+        }
+    }
+
+    private synchronized void playerQuit(String proxy, UUID uuid, List<Event> events) {
+        // Only forget the player if a newer join on another proxy hasn't already replaced them.
+        if (proxies.remove(uuid, proxy)) {
+            setServer(uuid, null);
+            version++;
+            events.add(new NetworkPlayerQuitEvent(uuid, proxy));
+        }
+    }
+
+    private synchronized void playerChangedServer(String proxy, UUID uuid, String server, List<Event> events) {
+        boolean moved = !proxy.equals(proxies.put(uuid, proxy));
+        String previous = setServer(uuid, server);
+        if (!server.equals(previous)) {
+            version++;
+            events.add(new NetworkServerSwitchEvent(uuid, proxy, previous, server));
+        } else if (moved) {
+            version++;
+        }
+    }
+
+    private String setServer(UUID uuid, String server) {
+        String old = server == null ? servers.remove(uuid) : servers.put(uuid, server);
+        if (old != null) {
+            Set<UUID> players = serverPlayers.get(old);
+            if (players != null) {
+                players.remove(uuid);
+                if (players.isEmpty())
+                    serverPlayers.remove(old);
+            }
+        }
+        if (server != null) {
+            Set<UUID> players = serverPlayers.get(server);
+            if (players == null) {
+                players = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+                serverPlayers.put(server, players);
+            }
+            players.add(uuid);
+        }
+        return old;
+    }
+
+    /**
+     * Drop every player belonging to a proxy that is no longer alive.
+     */
+    void retainProxies(Collection<String> alive) {
+        Set<String> aliveSet = new HashSet<>(alive);
+        List<Event> events = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<UUID, String>> it = proxies.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<UUID, String> entry = it.next();
+                if (!aliveSet.contains(entry.getValue())) {
+                    // The quits the reclaimer publishes will find them gone, so post the events here instead.
+                    events.add(new NetworkPlayerQuitEvent(entry.getKey(), entry.getValue()));
+                    setServer(entry.getKey(), null);
+                    it.remove();
+                }
+            }
+            if (!events.isEmpty())
+                version++;
+        }
+        post(events);
+    }
+
+    void handleDelta(String message) {
+        List<Event> events = new ArrayList<>();
+        synchronized (this) {
+            // A bootstrap is reading Redis; the delta is applied on top of what it reads once it is done.
+            if (buffered != null) {
+                buffered.add(message);
+                return;
+            }
+            apply(message, events);
+        }
+        post(events);
+    }
+
+    private synchronized void apply(String message, List<Event> events) {
+        for (String line : LINE_SPLITTER.split(message)) {
+            String[] fields = line.split("\t", 4);
+            // Our own deltas echo back long after we applied them, and replaying them could undo newer changes.
+            if (fields.length < 3 || fields[1].equals(plugin.getServerId()))
+                continue;
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(fields[2]);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            switch (fields[0]) {
+                case "J":
+                    playerJoined(fields[1], uuid, events);
+                    break;
+                case "Q":
+                    playerQuit(fields[1], uuid, events);
+                    break;
+                case "S":
+                    if (fields.length == 4)
+                        playerChangedServer(fields[1], uuid, fields[3], events);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void post(List<Event> events) {
+        PubSubDispatcher dispatcher = plugin.getDispatcher();
+        // Nothing can be listening before the dispatcher is up.
+        if (!events.isEmpty() && dispatcher != null)
+            dispatcher.dispatchEvents(DELTA_CHANNEL, events);
+    }
+
+    /**
+     * Reload the entire replica from Redis. This is done on startup, after we have subscribed to {@link #DELTA_CHANNEL},
+     * and by {@link #resync()}. Deltas that arrive while Redis is being read are held back and applied afterwards, so
+     * that none of them is lost or applied underneath an older read.
+     * <p>
+     * Server membership comes from the per-backend sets maintained by {@link RedisBungeeConsumer}; only players
+     * missing from every backend set are looked up individually. Our own players are taken from the proxy instead, as
+     * the consumer may not have written them yet, and their deltas are ignored when they come back to us.
+     * <p>
+     * Every change a reload makes is posted as an event, like the deltas are, apart from on the first load.
+     */
+    final void bootstrap() {
+        synchronized (this) {
+            if (buffered == null)
+                buffered = new ArrayList<>();
+        }
+        List<Event> events = new ArrayList<>();
+        Jedis rsc = null;
+        try {
+            rsc = plugin.getPool().getResource();
+            List<String> proxyIds = plugin.getServerIds();
+            Map<String, Response<Set<String>>> memberResponses = new HashMap<>();
+            Pipeline pipeline = rsc.pipelined();
+            for (String proxyId : proxyIds)
+                memberResponses.put(proxyId, pipeline.smembers(RedisKeys.usersOnline(proxyId)));
+            pipeline.sync();
+
+            Map<UUID, String> newProxies = new HashMap<>();
+            for (Map.Entry<String, Response<Set<String>>> entry : memberResponses.entrySet()) {
+                for (String member : entry.getValue().get()) {
+                    try {
+                        newProxies.put(UUID.fromString(member), entry.getKey());
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            }
+
+            Map<String, Response<Set<String>>> backendResponses = new HashMap<>();
+            pipeline = rsc.pipelined();
+            for (String server : plugin.getProxy().getServers().keySet())
+                backendResponses.put(server, pipeline.smembers(RedisKeys.backend(server)));
+            pipeline.sync();
+
+            Map<UUID, String> newServers = new HashMap<>();
+            for (Map.Entry<String, Response<Set<String>>> entry : backendResponses.entrySet()) {
+                for (String member : entry.getValue().get()) {
+                    try {
+                        UUID uuid = UUID.fromString(member);
+                        // Backend sets may still hold players of a proxy that has since died.
+                        if (newProxies.containsKey(uuid))
+                            newServers.put(uuid, entry.getKey());
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                }
+            }
+
+            Map<UUID, Response<String>> serverResponses = new HashMap<>();
+            pipeline = rsc.pipelined();
+            for (UUID uuid : newProxies.keySet())
+                if (!newServers.containsKey(uuid))
+                    serverResponses.put(uuid, pipeline.hget(RedisKeys.player(uuid), "server"));
+            pipeline.sync();
+
+            for (Map.Entry<UUID, Response<String>> entry : serverResponses.entrySet()) {
+                String server = entry.getValue().get();
+                if (server != null)
+                    newServers.put(entry.getKey(), server);
+            }
+
+            String serverId = plugin.getServerId();
+            for (Iterator<Map.Entry<UUID, String>> it = newProxies.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<UUID, String> entry = it.next();
+                if (entry.getValue().equals(serverId)) {
+                    it.remove();
+                    newServers.remove(entry.getKey());
+                }
+            }
+            for (ProxiedPlayer player : plugin.getProxy().getPlayers()) {
+                newProxies.put(player.getUniqueId(), serverId);
+                Server server = player.getServer();
+                if (server != null)
+                    newServers.put(player.getUniqueId(), server.getInfo().getName());
+                else
+                    newServers.remove(player.getUniqueId());
+            }
+
+            synchronized (this) {
+                if (loaded)
+                    diff(newProxies, newServers, events);
+                proxies.clear();
+                proxies.putAll(newProxies);
+                servers.clear();
+                serverPlayers.clear();
+                for (Map.Entry<UUID, String> entry : newServers.entrySet())
+                    setServer(entry.getKey(), entry.getValue());
+                version++;
+                loaded = true;
+            }
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            plugin.getLogger().log(Level.SEVERE, "Unable to bootstrap network state - did your Redis server go away?", e);
+            if (rsc != null)
+                plugin.getPool().returnBrokenResource(rsc);
+        } finally {
+            if (rsc != null)
+                plugin.getPool().returnResource(rsc);
+            synchronized (this) {
+                for (String message : buffered)
+                    apply(message, events);
+                buffered = null;
+            }
+            post(events);
+        }
+    }
+
+    /**
+     * Collect the events for the changes between the replica and what a reload is about to replace it with.
+     */
+    private void diff(Map<UUID, String> newProxies, Map<UUID, String> newServers, List<Event> events) {
+        for (Map.Entry<UUID, String> entry : proxies.entrySet()) {
+            String proxy = newProxies.get(entry.getKey());
+            if (!entry.getValue().equals(proxy))
+                events.add(new NetworkPlayerQuitEvent(entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<UUID, String> entry : newProxies.entrySet()) {
+            UUID uuid = entry.getKey();
+            String previousProxy = proxies.get(uuid);
+            String previous = servers.get(uuid);
+            if (!entry.getValue().equals(previousProxy)) {
+                events.add(new NetworkPlayerJoinEvent(uuid, entry.getValue()));
+                // The player's old server went with their quit.
+                previous = null;
+            }
+            String server = newServers.get(uuid);
+            if (server != null && !server.equals(previous))
+                events.add(new NetworkServerSwitchEvent(uuid, entry.getValue(), previous, server));
+        }
+    }
+
+    /**
+     * Compare the number of players we believe each proxy and each backend server has against Redis, and reload if
+     * they differ. Counts can agree while the players behind them do not, so every {@link #FULL_RELOAD_INTERVAL}th
+     * pass reloads everything regardless.
+     */
+    final void resync() {
+        if (++resyncs % FULL_RELOAD_INTERVAL == 0) {
+            drifted = Collections.emptySet();
+            bootstrap();
+            return;
+        }
+
+        Map<String, Response<Long>> counts = new HashMap<>();
+        Jedis rsc = plugin.getPool().getResource();
+        try {
+            Pipeline pipeline = rsc.pipelined();
+            for (String proxyId : plugin.getServerIds()) {
+                String key = RedisKeys.usersOnline(proxyId);
+                counts.put(key, pipeline.scard(key));
+            }
+            for (String server : plugin.getProxy().getServers().keySet()) {
+                String key = RedisKeys.backend(server);
+                counts.put(key, pipeline.scard(key));
+            }
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            plugin.getLogger().log(Level.SEVERE, "Unable to verify network state - did your Redis server go away?", e);
+            plugin.getPool().returnBrokenResource(rsc);
+            return;
+        } finally {
+            plugin.getPool().returnResource(rsc);
+        }
+
+        Map<String, Long> local = new HashMap<>();
+        for (String proxy : proxies.values()) {
+            String key = RedisKeys.usersOnline(proxy);
+            Long c = local.get(key);
+            local.put(key, c == null ? 1L : c + 1);
+        }
+        for (Map.Entry<String, Set<UUID>> entry : serverPlayers.entrySet())
+            local.put(RedisKeys.backend(entry.getKey()), (long) entry.getValue().size());
+
+        // Deltas are only a few milliseconds behind, so a set must disagree twice in a row before we reload.
+        Set<String> nowDrifted = new HashSet<>();
+        for (Map.Entry<String, Response<Long>> entry : counts.entrySet()) {
+            Long expected = entry.getValue().get();
+            Long actual = local.get(entry.getKey());
+            if ((expected == null ? 0 : expected) != (actual == null ? 0 : actual))
+                nowDrifted.add(entry.getKey());
+        }
+        Set<String> persistent = new HashSet<>(nowDrifted);
+        persistent.retainAll(drifted);
+        drifted = nowDrifted;
+        if (!persistent.isEmpty()) {
+            plugin.getLogger().info("Network state for " + persistent + " drifted from Redis, resynchronizing.");
+            drifted = Collections.emptySet();
+            bootstrap();
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Versioned<T> {
+        private final long version;
+        private final T value;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The wire format of binary PubSub messages.
+ * <p>
+ * Every message starts with a one-byte header. {@link #RAW} is followed by the payload as-is; {@link #DEFLATE} is
+ * followed by the payload's length as a big-endian int and then the payload compressed with Deflate. Payloads are only
+ * compressed once they reach the configured threshold, and only sent compressed if that actually made them smaller.
+ */
+final class PayloadCodec {
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    // Redis allows far bigger messages, but nobody should be sending those over PubSub.
+    private static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * @param threshold the smallest payload worth compressing, or 0 to never compress
+     */
+    static byte[] encode(byte[] payload, int threshold) {
+        if (threshold > 0 && payload.length >= threshold) {
+            // Compressors hold native memory until end() is called, so each one is ended as soon as we are done.
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload);
+                deflater.finish();
+                // Anything that does not fit here is no smaller than sending the payload raw.
+                byte[] buffer = new byte[payload.length];
+                int length = 5;
+                while (!deflater.finished() && length < buffer.length)
+                    length += deflater.deflate(buffer, length, buffer.length - length);
+                if (deflater.finished()) {
+                    buffer[0] = DEFLATE;
+                    buffer[1] = (byte) (payload.length >>> 24);
+                    buffer[2] = (byte) (payload.length >>> 16);
+                    buffer[3] = (byte) (payload.length >>> 8);
+                    buffer[4] = (byte) payload.length;
+                    return Arrays.copyOf(buffer, length);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        byte[] data = new byte[payload.length + 1];
+        data[0] = RAW;
+        System.arraycopy(payload, 0, data, 1, payload.length);
+        return data;
+    }
+
+    static byte[] decode(byte[] data) throws DataFormatException {
+        if (data.length == 0)
+            throw new DataFormatException("Empty message");
+        switch (data[0]) {
+            case RAW:
+                return Arrays.copyOfRange(data, 1, data.length);
+            case DEFLATE:
+                if (data.length < 5)
+                    throw new DataFormatException("Truncated header");
+                int length = (data[1] & 0xFF) << 24 | (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 8 | data[4] & 0xFF;
+                if (length < 0 || length > MAX_INFLATED_LENGTH)
+                    throw new DataFormatException("Payload too large: " + length + " bytes");
+                Inflater inflater = new Inflater();
+                byte[] payload = new byte[length];
+                int read = 0;
+                try {
+                    inflater.setInput(data, 5, data.length - 5);
+                    while (read < length) {
+                        int inflated = inflater.inflate(payload, read, length - read);
+                        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        read += inflated;
+                    }
+                } finally {
+                    inflater.end();
+                }
+                if (read != length)
+                    throw new DataFormatException("Expected " + length + " bytes, got " + read);
+                return payload;
+            default:
+                throw new DataFormatException("Unknown encoding " + data[0]);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.chat.ComponentSerializer;
+
+import java.util.UUID;
+
+/**
+ * Messages, kicks and moves players wherever they are on the network.
+ * <p>
+ * The proxy a player is on is known from our copy of the network state, so an action for a player on another proxy is
+ * published once, on {@code redisbungee-action-<id>} for that proxy alone. Each message is a one-character action
+ * followed by the player's UUID and the argument, with no delimiters since a UUID is always 36 characters long.
+ */
+class PlayerActions {
+    private static final String CHANNEL_PREFIX = "redisbungee-action-";
+    private static final char MESSAGE = 'M';
+    private static final char KICK = 'K';
+    private static final char CONNECT = 'C';
+    private static final int ARGUMENT_START = 37;
+
+    private final RedisBungee plugin;
+
+    PlayerActions(RedisBungee plugin) {
+        this.plugin = plugin;
+    }
+
+    void start() {
+        plugin.getPubSubRegistry().register(CHANNEL_PREFIX + plugin.getServerId(), new PubSubHandler() {
+            @Override
+            public void onMessage(String channel, String message) {
+                if (message.length() < ARGUMENT_START)
+                    return;
+                UUID uuid;
+                try {
+                    uuid = UUID.fromString(message.substring(1, ARGUMENT_START));
+                } catch (IllegalArgumentException e) {
+                    return;
+                }
+                ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
+                // They may have left since the action was sent.
+                if (player != null)
+                    apply(player, message.charAt(0), message.substring(ARGUMENT_START));
+            }
+        });
+    }
+
+    boolean sendMessage(UUID player, BaseComponent... message) {
+        return route(player, MESSAGE, ComponentSerializer.toString(message));
+    }
+
+    boolean kick(UUID player, BaseComponent... reason) {
+        return route(player, KICK, ComponentSerializer.toString(reason));
+    }
+
+    boolean connect(UUID player, ServerInfo server) {
+        return route(player, CONNECT, server.getName());
+    }
+
+    /**
+     * @return false if the player is not online
+     */
+    private boolean route(UUID uuid, char action, String argument) {
+        ProxiedPlayer player = plugin.getProxy().getPlayer(uuid);
+        if (player != null) {
+            apply(player, action, argument);
+            return true;
+        }
+        String proxy = plugin.getNetworkState().getProxy(uuid);
+        if (proxy == null)
+            return false;
+        plugin.publish(CHANNEL_PREFIX + proxy, action + uuid.toString() + argument);
+        return true;
+    }
+
+    private void apply(ProxiedPlayer player, char action, String argument) {
+        switch (action) {
+            case MESSAGE:
+                player.sendMessage(ComponentSerializer.parse(argument));
+                break;
+            case KICK:
+                player.disconnect(ComponentSerializer.parse(argument));
+                break;
+            case CONNECT:
+                ServerInfo server = plugin.getProxy().getServerInfo(argument);
+                if (server == null)
+                    plugin.getLogger().warning("Unable to move " + player.getName() + " to unknown server " + argument);
+                else
+                    player.connect(server);
+                break;
+            default:
+                plugin.getLogger().warning("Ignoring unknown player action " + action);
+        }
+    }
+}
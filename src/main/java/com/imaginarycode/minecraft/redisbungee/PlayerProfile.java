@@ -0,0 +1,52 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.net.InetAddress;
+import java.util.UUID;
+
+/**
+ * Everything RedisBungee knows about a player, as of the moment it was fetched.
+ *
+ * @see RedisBungeeAPI#getProfiles(java.util.Collection)
+ * @since 0.3.3
+ */
+@Getter
+@ToString
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+public class PlayerProfile {
+    private final UUID uuid;
+    /**
+     * The player's name, or null if it has never been recorded.
+     */
+    private final String name;
+    /**
+     * The proxy the player is connected to, or null if they are offline.
+     */
+    private final String proxy;
+    /**
+     * The server the player is playing on, or null if they are offline or not yet on a server.
+     */
+    private final String server;
+    /**
+     * The player's address, or null if they are offline.
+     */
+    private final InetAddress address;
+    /**
+     * 0 if the player is online, -1 if they have never been recorded, otherwise the time they were last seen.
+     */
+    private final long lastOnline;
+
+    public boolean isOnline() {
+        return lastOnline == 0;
+    }
+}
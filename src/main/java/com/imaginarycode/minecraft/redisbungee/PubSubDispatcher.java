@@ -0,0 +1,253 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.imaginarycode.minecraft.redisbungee.events.BinaryPubSubMessageEvent;
+import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import net.md_5.bungee.api.plugin.Event;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+
+/**
+ * Hands incoming PubSub messages to plugins on a fixed set of workers.
+ * <p>
+ * Each message goes to the {@link PubSubHandler}s registered for its channel or pattern in the {@link PubSubRegistry};
+ * {@link PubSubMessageEvent} is only fired for channels registered the old way, as it costs a pass over every listener
+ * on the proxy. Binary messages are decompressed here too, rather than on the thread reading from Redis.
+ * <p>
+ * Every message on a channel goes to the same worker, so plugins see each channel's messages in the order they were
+ * published. Each worker has a bounded queue. Nothing ever waits for room in it, as that would hold up the subscriber,
+ * and with it BungeeCord's event threads; {@code pubsub-overflow-policy} decides which message is dropped instead.
+ */
+class PubSubDispatcher {
+    /**
+     * What to do with a message when its worker's queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Drop the message that did not fit.
+         */
+        DROP,
+        /**
+         * Drop the oldest message still queued to make room, for plugins that only care about the latest state.
+         */
+        DROP_OLDEST
+    }
+
+    private final RedisBungee plugin;
+    private final Worker[] workers;
+    private final OverflowPolicy overflowPolicy;
+    private final CountDownLatch finished;
+    private volatile boolean stopped = false;
+
+    PubSubDispatcher(RedisBungee plugin) {
+        this.plugin = plugin;
+        OverflowPolicy policy;
+        try {
+            policy = OverflowPolicy.valueOf(RedisBungee.getConfiguration().getString("pubsub-overflow-policy", "DROP").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown pubsub-overflow-policy, using DROP.");
+            policy = OverflowPolicy.DROP;
+        }
+        this.overflowPolicy = policy;
+        int capacity = Math.max(1, RedisBungee.getConfiguration().getInt("pubsub-queue-capacity", 1000));
+        this.workers = new Worker[Math.max(1, RedisBungee.getConfiguration().getInt("pubsub-workers", 2))];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new Worker(i, capacity);
+        this.finished = new CountDownLatch(workers.length);
+    }
+
+    void start() {
+        for (Worker worker : workers)
+            plugin.getProxy().getScheduler().runAsync(plugin, worker);
+    }
+
+    Worker[] getWorkers() {
+        return workers;
+    }
+
+    void dispatch(String channel, String message) {
+        dispatch(null, channel, message);
+    }
+
+    /**
+     * Queue a message that arrived through a pattern subscription. It is routed by channel all the same, so that it
+     * stays in order with the rest of the channel.
+     */
+    void dispatch(String pattern, String channel, String message) {
+        workerFor(channel).queue(new QueuedMessage(pattern, channel, message, null, null, System.nanoTime()));
+    }
+
+    /**
+     * Queue a message from a binary channel, still encoded as described in {@link PayloadCodec}.
+     */
+    void dispatchBinary(String channel, byte[] data) {
+        workerFor(channel).queue(new QueuedMessage(null, channel, null, data, null, System.nanoTime()));
+    }
+
+    /**
+     * Queue events to be posted in order, on the worker for the channel they came from. This is called with the network
+     * state locked and from BungeeCord's event threads, so it never waits.
+     */
+    void dispatchEvents(String channel, List<? extends Event> events) {
+        workerFor(channel).queue(new QueuedMessage(null, channel, null, null, events, System.nanoTime()));
+    }
+
+    private Worker workerFor(String channel) {
+        return workers[(channel.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    private void deliver(QueuedMessage queued) {
+        String channel = queued.getChannel();
+        if (queued.getEvents() != null) {
+            for (Event event : queued.getEvents())
+                plugin.getProxy().getPluginManager().callEvent(event);
+            return;
+        }
+        if (queued.getData() != null) {
+            deliverBinary(channel, queued.getData());
+            return;
+        }
+        PubSubRegistry<PubSubHandler> registry = plugin.getPubSubRegistry();
+        String pattern = queued.getPattern();
+        String message = queued.getMessage();
+        for (PubSubHandler handler : pattern == null ? registry.getHandlers(channel) : registry.getPatternHandlers(pattern)) {
+            try {
+                handler.onMessage(channel, message);
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "PubSub handler " + handler + " failed on " + channel, e);
+            }
+        }
+        if (pattern == null && registry.firesEvent(channel))
+            plugin.getProxy().getPluginManager().callEvent(new PubSubMessageEvent(channel, message));
+    }
+
+    private void deliverBinary(String channel, byte[] data) {
+        PubSubRegistry<BinaryPubSubHandler> registry = plugin.getBinaryPubSubRegistry();
+        byte[] message;
+        try {
+            message = PayloadCodec.decode(data);
+        } catch (DataFormatException e) {
+            plugin.getLogger().warning("Ignoring malformed binary message on " + channel + ": " + e.getMessage());
+            return;
+        }
+        List<BinaryPubSubHandler> handlers = registry.getHandlers(channel);
+        for (int i = 0; i < handlers.size(); i++) {
+            try {
+                // Every handler but the last gets its own copy, so that none of them can spoil it for the rest.
+                handlers.get(i).onMessage(channel, i == handlers.size() - 1 && !registry.firesEvent(channel) ?
+                        message : message.clone());
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "PubSub handler " + handlers.get(i) + " failed on " + channel, e);
+            }
+        }
+        if (registry.firesEvent(channel))
+            plugin.getProxy().getPluginManager().callEvent(new BinaryPubSubMessageEvent(channel, message));
+    }
+
+    /**
+     * Stop accepting messages and give the workers a moment to deliver what they still hold.
+     */
+    void stop() {
+        stopped = true;
+        try {
+            finished.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    class Worker implements Runnable {
+        private final int id;
+        private final BlockingQueue<QueuedMessage> queue;
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long latencyNanos = 0;
+
+        private Worker(int id, int capacity) {
+            this.id = id;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int getQueueDepth() {
+            return queue.size();
+        }
+
+        /**
+         * How long the most recent message took from arriving to every listener having seen it.
+         */
+        long getLatency(TimeUnit unit) {
+            return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+
+        long getDispatched() {
+            return dispatched.get();
+        }
+
+        long getDropped() {
+            return dropped.get();
+        }
+
+        private void queue(QueuedMessage queued) {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                // The worker may take a message between our attempts, in which case there is nothing to drop.
+                while (!queue.offer(queued))
+                    if (queue.poll() != null)
+                        dropped.incrementAndGet();
+            } else if (!queue.offer(queued)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped || !queue.isEmpty()) {
+                    QueuedMessage queued = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (queued == null)
+                        continue;
+                    try {
+                        deliver(queued);
+                    } catch (Exception e) {
+                        plugin.getLogger().log(Level.SEVERE, "Unable to deliver message on " + queued.getChannel(), e);
+                    }
+                    dispatched.incrementAndGet();
+                    latencyNanos = System.nanoTime() - queued.getQueuedAt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class QueuedMessage {
+        private final String pattern;
+        private final String channel;
+        private final String message;
+        private final byte[] data;
+        private final List<? extends Event> events;
+        private final long queuedAt;
+    }
+}
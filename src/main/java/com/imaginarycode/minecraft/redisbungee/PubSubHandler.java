@@ -0,0 +1,27 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+/**
+ * Receives PubSub messages for a channel or pattern registered with
+ * {@link RedisBungeeAPI#registerPubSubHandler(String, PubSubHandler)} or
+ * {@link RedisBungeeAPI#registerPubSubPatternHandler(String, PubSubHandler)}.
+ * <p>
+ * <strong>Warning</strong>: Handlers are called on a RedisBungee worker thread, not the thread that registered them.
+ * Messages on any one channel are delivered in the order they were published, one at a time.
+ *
+ * @since 0.3.3
+ */
+public interface PubSubHandler {
+    /**
+     * Called for every message published on a channel this handler is registered for.
+     *
+     * @param channel the channel the message was published on; for pattern handlers, the channel that matched
+     * @param message the message
+     */
+    void onMessage(String channel, String message);
+}
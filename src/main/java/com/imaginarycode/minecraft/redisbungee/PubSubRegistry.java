@@ -0,0 +1,139 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of who wants which PubSub channels and patterns, and so which ones we need to be subscribed to. There is
+ * one registry for {@link PubSubHandler}s and one for {@link BinaryPubSubHandler}s, as each has its own connection.
+ * <p>
+ * Looking up the handlers for a message is a single hash lookup and never takes a lock. The register methods are
+ * synchronized and tell the caller whether the Redis subscription has to change.
+ * <p>
+ * Channels registered through {@link RedisBungeeAPI#registerPubSubChannels(String...)} are remembered separately, since
+ * those are the only ones {@link com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent} is still fired for.
+ *
+ * @param <H> the type of handler
+ */
+class PubSubRegistry<H> {
+    private final ConcurrentMap<String, List<H>> channelHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<H>> patternHandlers = new ConcurrentHashMap<>();
+    private final Set<String> eventChannels = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> reserved;
+
+    /**
+     * @param reserved channels that we always stay subscribed to and handle ourselves
+     */
+    PubSubRegistry(String... reserved) {
+        this.reserved = ImmutableSet.copyOf(reserved);
+    }
+
+    /**
+     * @return true if we now need to subscribe to the channel
+     */
+    synchronized boolean register(String channel, H handler) {
+        boolean subscribe = !isSubscribed(channel);
+        List<H> handlers = channelHandlers.get(channel);
+        if (handlers == null)
+            channelHandlers.put(channel, handlers = new CopyOnWriteArrayList<>());
+        handlers.add(handler);
+        return subscribe;
+    }
+
+    /**
+     * @return true if we no longer need to be subscribed to the channel
+     */
+    synchronized boolean unregister(String channel, H handler) {
+        List<H> handlers = channelHandlers.get(channel);
+        if (handlers == null || !handlers.remove(handler))
+            return false;
+        if (handlers.isEmpty())
+            channelHandlers.remove(channel);
+        return !isSubscribed(channel);
+    }
+
+    /**
+     * @return true if we now need to subscribe to the pattern
+     */
+    synchronized boolean registerPattern(String pattern, H handler) {
+        List<H> handlers = patternHandlers.get(pattern);
+        boolean subscribe = handlers == null;
+        if (subscribe)
+            patternHandlers.put(pattern, handlers = new CopyOnWriteArrayList<>());
+        handlers.add(handler);
+        return subscribe;
+    }
+
+    /**
+     * @return true if we no longer need to be subscribed to the pattern
+     */
+    synchronized boolean unregisterPattern(String pattern, H handler) {
+        List<H> handlers = patternHandlers.get(pattern);
+        if (handlers == null || !handlers.remove(handler))
+            return false;
+        if (!handlers.isEmpty())
+            return false;
+        patternHandlers.remove(pattern);
+        return true;
+    }
+
+    /**
+     * Fire {@link com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent}, or its binary counterpart, for a
+     * channel.
+     *
+     * @return true if we now need to subscribe to the channel
+     */
+    synchronized boolean registerEventChannel(String channel) {
+        boolean subscribe = !isSubscribed(channel);
+        eventChannels.add(channel);
+        return subscribe;
+    }
+
+    /**
+     * @return true if we no longer need to be subscribed to the channel
+     */
+    synchronized boolean unregisterEventChannel(String channel) {
+        return eventChannels.remove(channel) && !isSubscribed(channel);
+    }
+
+    List<H> getHandlers(String channel) {
+        List<H> handlers = channelHandlers.get(channel);
+        return handlers == null ? Collections.<H>emptyList() : handlers;
+    }
+
+    List<H> getPatternHandlers(String pattern) {
+        List<H> handlers = patternHandlers.get(pattern);
+        return handlers == null ? Collections.<H>emptyList() : handlers;
+    }
+
+    boolean firesEvent(String channel) {
+        return eventChannels.contains(channel);
+    }
+
+    /**
+     * Every channel, other than the reserved ones, that we should be subscribed to.
+     */
+    synchronized Set<String> getChannels() {
+        Set<String> channels = new HashSet<>(channelHandlers.keySet());
+        channels.addAll(eventChannels);
+        return channels;
+    }
+
+    synchronized Set<String> getPatterns() {
+        return new HashSet<>(patternHandlers.keySet());
+    }
+
+    private boolean isSubscribed(String channel) {
+        return reserved.contains(channel) || channelHandlers.containsKey(channel) || eventChannels.contains(channel);
+    }
+}
@@ -6,12 +6,15 @@
  */
 package com.imaginarycode.minecraft.redisbungee;
 
-import com.google.common.base.Functions;
+import com.google.common.base.Function;
 import com.google.common.collect.*;
 import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
+import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerChangedServerConsumerEvent;
+import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedInConsumerEvent;
+import com.imaginarycode.minecraft.redisbungee.util.MojangFetcher;
 import com.imaginarycode.minecraft.redisbungee.util.UUIDTranslator;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.NonNull;
 import net.md_5.bungee.api.config.ServerInfo;
@@ -22,14 +25,17 @@ import net.md_5.bungee.config.ConfigurationProvider;
 import net.md_5.bungee.config.YamlConfiguration;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -47,16 +53,38 @@ public final class RedisBungee extends Plugin {
     private RedisBungeeConsumer consumer;
     @Getter
     private UUIDTranslator uuidTranslator;
+    private MojangFetcher mojangFetcher;
+    @Getter(AccessLevel.PACKAGE)
+    private NetworkState networkState;
     @Getter
     private static Gson gson = new Gson();
     @Getter
     private String serverId;
     
     private static RedisBungeeAPI api;
+    private static RedisBungeeAsyncAPI asyncApi;
+    @Getter(AccessLevel.PACKAGE)
+    private AsyncExecutor asyncExecutor;
+    @Getter(AccessLevel.PACKAGE)
+    private HashFieldBatcher batcher;
+    @Getter(AccessLevel.PACKAGE)
+    private PubSubDispatcher dispatcher;
+    @Getter(AccessLevel.PACKAGE)
+    private PubSubRegistry<PubSubHandler> pubSubRegistry;
+    @Getter(AccessLevel.PACKAGE)
+    private PubSubRegistry<BinaryPubSubHandler> binaryPubSubRegistry;
+    private int compressionThreshold;
+    @Getter(AccessLevel.PACKAGE)
+    private RpcManager rpcManager;
+    @Getter(AccessLevel.PACKAGE)
+    private PlayerActions playerActions;
     private static PubSubListener psl = null;
-    private List<String> serverIds;
-    private AtomicInteger nagAboutServers = new AtomicInteger();
-    private int globalCount;
+    private static BinaryPubSubListener bpsl = null;
+    private volatile NetworkSnapshot snapshot;
+    private final AtomicBoolean recoveringLease = new AtomicBoolean();
+    private long leaseTimeout;
+    @Getter(AccessLevel.PACKAGE)
+    private RedisKeys keys;
 
     /**
      * Fetch the {@link RedisBungeeAPI} object created on plugin start.
@@ -67,172 +95,259 @@ public final class RedisBungee extends Plugin {
         return api;
     }
 
+    /**
+     * Fetch the {@link RedisBungeeAsyncAPI} object created on plugin start.
+     *
+     * @return the {@link RedisBungeeAsyncAPI} object
+     * @since 0.3.3
+     */
+    public static RedisBungeeAsyncAPI getAsyncApi() {
+        return asyncApi;
+    }
+
     static Configuration getConfiguration() {
         return configuration;
     }
 
     final List<String> getServerIds() {
-        return serverIds;
+        return snapshot.getProxies();
     }
 
-    final List<String> getCurrentServerIds() {
+    final NetworkSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Renew our lease and publish our count, reading back every registered proxy and its count, then check in a second
+     * round trip which of them still hold a lease. Proxies whose lease has lapsed are reclaimed here too, and our own
+     * players are re-registered if it was ours that lapsed, in case we missed the expiry notification.
+     */
+    @SuppressWarnings("unchecked")
+    final NetworkSnapshot takeSnapshot() {
+        int localCount = getProxy().getOnlineCount();
+        List<Object> reply;
         Jedis jedis = pool.getResource();
         try {
-            int nag = nagAboutServers.decrementAndGet();
-            if (nag <= 0) {
-                nagAboutServers.set(10);
-            }
-            ImmutableList.Builder<String> servers = ImmutableList.builder();
-            Map<String, String> heartbeats = jedis.hgetAll("heartbeats");
-            for (Map.Entry<String, String> entry : heartbeats.entrySet()) {
-                try {
-                    long stamp = Long.valueOf(entry.getValue());
-                    if (System.currentTimeMillis() < stamp + 30000)
-                        servers.add(entry.getKey());
-                    else if (nag <= 0) {
-                        getLogger().severe(entry.getKey() + " is " + (System.currentTimeMillis() - stamp) + "ms behind! (Time not synchronized or server down?)");
-                    }
-                } catch (NumberFormatException ignored) {
-                }
-            }
-            return servers.build();
+            reply = (List<Object>) RedisUtil.HEARTBEAT_SCRIPT.eval(jedis,
+                    ImmutableList.of(keys.getLease(), RedisKeys.PROXIES, RedisKeys.PLAYER_COUNTS),
+                    ImmutableList.of(serverId, String.valueOf(leaseTimeout), String.valueOf(localCount)));
         } catch (JedisConnectionException e) {
-            getLogger().log(Level.SEVERE, "Unable to fetch all server IDs", e);
+            getLogger().log(Level.SEVERE, "Unable to renew proxy lease - did your Redis server go away?", e);
             pool.returnBrokenResource(jedis);
-            return Collections.singletonList(serverId);
+            // Keep the last good view rather than declaring every other proxy dead.
+            return snapshot != null ? snapshot : new NetworkSnapshot(ImmutableList.of(serverId), localCount,
+                    System.currentTimeMillis());
         } finally {
             pool.returnResource(jedis);
         }
-    }
 
-    static PubSubListener getPubSubListener() {
-        return psl;
+        long now = RedisUtil.toMillis(ImmutableList.of((String) reply.get(0), (String) reply.get(1)));
+        int proxiesEnd = 4 + ((Long) reply.get(3)).intValue();
+        Map<String, String> counts = new HashMap<>();
+        for (int i = proxiesEnd; i + 1 < reply.size(); i += 2)
+            counts.put((String) reply.get(i), (String) reply.get(i + 1));
+        List<String> others = new ArrayList<>();
+        for (Object proxy : reply.subList(4, proxiesEnd))
+            if (!proxy.equals(serverId))
+                others.add((String) proxy);
+        List<Object> leases;
+        try {
+            leases = leasesHeld(others);
+        } catch (JedisConnectionException e) {
+            return snapshot != null ? snapshot : new NetworkSnapshot(ImmutableList.of(serverId), localCount, now);
+        }
+        ImmutableList.Builder<String> servers = ImmutableList.builder();
+        servers.add(serverId);
+        int c = localCount;
+        for (int i = 0; i < others.size(); i++) {
+            String proxy = others.get(i);
+            if (!(Boolean) leases.get(i)) {
+                reclaim(proxy);
+                continue;
+            }
+            servers.add(proxy);
+            try {
+                c += Integer.parseInt(counts.get(proxy));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        // Our lease had lapsed before we renewed it. Without keyspace notifications this is the only way we find out.
+        if ((Long) reply.get(2) == 0)
+            recoverLease();
+        return new NetworkSnapshot(servers.build(), c, now);
     }
 
-    final Multimap<String, UUID> serversToPlayers() {
-        ImmutableMultimap.Builder<String, UUID> multimapBuilder = ImmutableMultimap.builder();
-        for (UUID p : getPlayers()) {
-            ServerInfo si = getServerFor(p);
-            if (si != null)
-                multimapBuilder = multimapBuilder.put(si.getName(), p);
+    /**
+     * Check which of the given proxies still hold a lease. Their lease keys can only be known once the heartbeat has
+     * listed them, so this cannot be part of the heartbeat script.
+     */
+    private List<Object> leasesHeld(List<String> proxies) {
+        if (proxies.isEmpty())
+            return Collections.emptyList();
+        Jedis jedis = pool.getResource();
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (String proxy : proxies)
+                pipeline.exists(RedisKeys.lease(proxy));
+            return pipeline.syncAndReturnAll();
+        } catch (JedisConnectionException e) {
+            getLogger().log(Level.SEVERE, "Unable to check proxy leases - did your Redis server go away?", e);
+            pool.returnBrokenResource(jedis);
+            throw e;
+        } finally {
+            pool.returnResource(jedis);
         }
-        return multimapBuilder.build();
     }
 
-    final int getCount() {
-        return globalCount;
+    /**
+     * Reclaim the players of a proxy whose lease has expired. Every surviving proxy may call this; only one of them will
+     * actually do the work.
+     */
+    final void reclaim(final String proxy) {
+        getProxy().getScheduler().runAsync(this, new Runnable() {
+            @Override
+            public void run() {
+                Jedis rsc = pool.getResource();
+                try {
+                    long reclaimed = RedisUtil.reclaimProxy(proxy, serverId, rsc);
+                    if (reclaimed >= 0)
+                        getLogger().warning("Proxy " + proxy + " stopped renewing its lease. Reclaimed " + reclaimed + " players.");
+                } catch (JedisConnectionException e) {
+                    getLogger().log(Level.SEVERE, "Unable to reclaim proxy " + proxy + " - did your Redis server go away?", e);
+                    pool.returnBrokenResource(rsc);
+                } finally {
+                    pool.returnResource(rsc);
+                }
+            }
+        });
     }
 
-    final int getCurrentCount() {
-        int c = getProxy().getOnlineCount();
-        if (pool != null) {
-            Jedis rsc = pool.getResource();
-            try {
-                List<String> serverIds = getServerIds();
-                Map<String, String> counts = rsc.hgetAll("playerCounts");
-                for (Map.Entry<String, String> entry : counts.entrySet()) {
-                    if (!serverIds.contains(entry.getKey()))
-                        continue;
-
-                    if (entry.getKey().equals(serverId)) continue;
+    /**
+     * Our own lease lapsed, most likely through a long pause, and our players may have been reclaimed. Finish the job
+     * ourselves, take the lease back, then register every local player again.
+     */
+    private void recoverLease() {
+        // The expiry notification and the heartbeat can both notice, but the players only need registering once.
+        if (!recoveringLease.compareAndSet(false, true))
+            return;
+        getProxy().getScheduler().runAsync(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recover();
+                } finally {
+                    recoveringLease.set(false);
+                }
+            }
 
-                    try {
-                        c += Integer.valueOf(entry.getValue());
-                    } catch (NumberFormatException e) {
-                        rsc.hset("playerCounts", entry.getKey(), "0");
-                    }
+            private void recover() {
+                Jedis rsc = pool.getResource();
+                try {
+                    RedisUtil.reclaimProxy(serverId, serverId, rsc);
+                } catch (JedisConnectionException e) {
+                    getLogger().log(Level.SEVERE, "Unable to recover proxy lease - did your Redis server go away?", e);
+                    pool.returnBrokenResource(rsc);
+                    return;
+                } finally {
+                    pool.returnResource(rsc);
+                }
+                snapshot = takeSnapshot();
+                getLogger().warning("Our lease expired! Re-registering " + getProxy().getOnlineCount() + " players.");
+                rsc = pool.getResource();
+                try {
+                    Pipeline pipeline = rsc.pipelined();
+                    for (ProxiedPlayer player : getProxy().getPlayers())
+                        pipeline.hset(RedisKeys.ONLINE, player.getUniqueId().toString(), serverId);
+                    pipeline.sync();
+                } catch (JedisConnectionException e) {
+                    getLogger().log(Level.SEVERE, "Unable to restore player claims - did your Redis server go away?", e);
+                    pool.returnBrokenResource(rsc);
+                } finally {
+                    pool.returnResource(rsc);
+                }
+                for (ProxiedPlayer player : getProxy().getPlayers()) {
+                    consumer.queue(new PlayerLoggedInConsumerEvent(player.getUniqueId(), player.getName(),
+                            player.getAddress().getAddress().getHostAddress()));
+                    if (player.getServer() != null)
+                        consumer.queue(new PlayerChangedServerConsumerEvent(player.getUniqueId(), null,
+                                player.getServer().getInfo().getName()));
                 }
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(rsc);
-                throw new RuntimeException("Unable to get total player count", e);
-            } finally {
-                pool.returnResource(rsc);
             }
+        });
+    }
+
+    /**
+     * Ask Redis to announce expired keys, so that we hear about dead proxies as soon as their lease runs out.
+     */
+    private void enableExpiryNotifications(Jedis rsc) {
+        try {
+            List<String> current = rsc.configGet("notify-keyspace-events");
+            String flags = current.size() > 1 ? current.get(1) : "";
+            if (!flags.contains("E") || !(flags.contains("x") || flags.contains("A")))
+                rsc.configSet("notify-keyspace-events", flags + "Ex");
+        } catch (JedisDataException e) {
+            getLogger().warning("Unable to enable keyspace notifications (" + e.getMessage() + "). Dead proxies will be " +
+                    "detected on the next heartbeat instead.");
         }
-        return c;
     }
 
-    final Set<UUID> getLocalPlayers() {
-        ImmutableSet.Builder<UUID> setBuilder = ImmutableSet.builder();
-        for (ProxiedPlayer pp : getProxy().getPlayers())
-            setBuilder = setBuilder.add(pp.getUniqueId());
-        return setBuilder.build();
+    static PubSubListener getPubSubListener() {
+        return psl;
     }
 
-    final Collection<String> getLocalPlayersAsUuidStrings() {
-        return Collections2.transform(getLocalPlayers(), Functions.toStringFunction());
+    static BinaryPubSubListener getBinaryPubSubListener() {
+        return bpsl;
     }
 
-    final Set<UUID> getPlayers() {
-        ImmutableSet.Builder<UUID> setBuilder = ImmutableSet.<UUID>builder().addAll(getLocalPlayers());
-        if (pool != null) {
-            Jedis rsc = pool.getResource();
-            try {
-                List<String> keys = new ArrayList<>();
-                for (String i : getServerIds()) {
-                    if (i.equals(serverId))
-                        continue;
+    final Multimap<String, UUID> serversToPlayers() {
+        return networkState.serversToPlayers();
+    }
 
-                    keys.add("server:" + i + ":usersOnline");
-                }
-                if (!keys.isEmpty()) {
-                    Set<String> users = rsc.sunion(keys.toArray(new String[keys.size()]));
-                    if (users != null && !users.isEmpty()) {
-                        for (String user : users) {
-                            try {
-                                setBuilder = setBuilder.add(UUID.fromString(user));
-                            } catch (IllegalArgumentException ignored) {
-                            }
-                        }
-                    }
-                }
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(rsc);
-                throw new RuntimeException("Unable to get all players online", e);
-            } finally {
-                pool.returnResource(rsc);
+    final int getCount() {
+        return snapshot.getPlayerCount();
+    }
+
+    final Set<UUID> getLocalPlayers() {
+        return CompactUUIDSet.copyOf(Collections2.transform(getProxy().getPlayers(), new Function<ProxiedPlayer, UUID>() {
+            @Override
+            public UUID apply(ProxiedPlayer player) {
+                return player.getUniqueId();
             }
-        }
-        return setBuilder.build();
+        }));
+    }
+
+    final Set<UUID> getPlayers() {
+        return networkState.getPlayers();
     }
 
     final Set<UUID> getPlayersOnServer(@NonNull String server) {
         checkArgument(getProxy().getServerInfo(server) != null, "server doesn't exist");
-        return ImmutableSet.copyOf(serversToPlayers().get(server));
+        return networkState.getPlayersOnServer(server);
+    }
+
+    final int getPlayerCountOnServer(@NonNull String server) {
+        checkArgument(getProxy().getServerInfo(server) != null, "server doesn't exist");
+        return networkState.getPlayerCountOnServer(server);
     }
 
     final ServerInfo getServerFor(@NonNull UUID uuid) {
         ServerInfo server = null;
         if (getProxy().getPlayer(uuid) != null) return getProxy().getPlayer(uuid).getServer().getInfo();
-        if (pool != null) {
-            Jedis tmpRsc = pool.getResource();
-            try {
-                String result = tmpRsc.hget("player:" + uuid, "server");
-                if (result != null)
-                    server = getProxy().getServerInfo(result);
-            } catch (JedisConnectionException e) {
-                // Redis server has disappeared!
-                getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
-                pool.returnBrokenResource(tmpRsc);
-                throw new RuntimeException("Unable to get server for " + uuid, e);
-            } finally {
-                pool.returnResource(tmpRsc);
-            }
-        }
+        String result = networkState.getServer(uuid);
+        if (result != null)
+            server = getProxy().getServerInfo(result);
         return server;
     }
 
     final long getLastOnline(@NonNull UUID uuid) {
         long time = -1L;
         if (getProxy().getPlayer(uuid) != null) return 0;
+        if (networkState.getProxy(uuid) != null) return 0;
         if (pool != null) {
             Jedis tmpRsc = pool.getResource();
             try {
-                String result = tmpRsc.hget("player:" + uuid, "online");
+                byte[] stored = tmpRsc.hget(RedisKeys.playerBytes(uuid), RedisKeys.ONLINE_FIELD);
+                String result = stored == null ? null : SafeEncoder.encode(stored);
                 if (result != null)
                     try {
                         time = Long.valueOf(result);
@@ -241,7 +356,7 @@ public final class RedisBungee extends Plugin {
                         boolean found = false;
                         for (String proxyId : getServerIds()) {
                             if (proxyId.equals(serverId)) continue;
-                            if (tmpRsc.sismember("server:" + proxyId + ":usersOnline", uuid.toString())) {
+                            if (tmpRsc.sismember(RedisKeys.usersOnline(proxyId), uuid.toString())) {
                                 found = true;
                                 break;
                             }
@@ -254,7 +369,7 @@ public final class RedisBungee extends Plugin {
                             getLogger().info(uuid + " is online. Setting to 0. Please check your BungeeCord instances.");
                             getLogger().info("If they are working properly, and this error does not resolve in a few minutes, please let Tux know!");
                         }
-                        tmpRsc.hset("player:" + uuid, "online", value);
+                        tmpRsc.hset(RedisKeys.player(uuid), "online", value);
                     }
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
@@ -268,6 +383,65 @@ public final class RedisBungee extends Plugin {
         return time;
     }
 
+    /**
+     * Fetch a profile for every player given. Local players are filled in from memory; everyone else is read with one
+     * {@code HGETALL} each, all in a single pipeline.
+     */
+    final Map<UUID, PlayerProfile> getProfiles(@NonNull Collection<UUID> uuids) {
+        Map<UUID, PlayerProfile> profiles = new HashMap<>();
+        Map<UUID, Response<Map<String, String>>> responses = new HashMap<>();
+        Jedis tmpRsc = pool.getResource();
+        try {
+            Pipeline pipeline = tmpRsc.pipelined();
+            for (UUID uuid : uuids) {
+                ProxiedPlayer player = getProxy().getPlayer(uuid);
+                if (player != null) {
+                    profiles.put(uuid, new PlayerProfile(uuid, player.getName(), serverId,
+                            player.getServer() == null ? null : player.getServer().getInfo().getName(),
+                            player.getAddress().getAddress(), 0));
+                } else if (!responses.containsKey(uuid)) {
+                    responses.put(uuid, pipeline.hgetAll(RedisKeys.player(uuid)));
+                }
+            }
+            pipeline.sync();
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            pool.returnBrokenResource(tmpRsc);
+            throw new RuntimeException("Unable to fetch player profiles", e);
+        } finally {
+            pool.returnResource(tmpRsc);
+        }
+
+        for (Map.Entry<UUID, Response<Map<String, String>>> entry : responses.entrySet()) {
+            UUID uuid = entry.getKey();
+            Map<String, String> data = entry.getValue().get();
+            String proxy = networkState.getProxy(uuid);
+            String server = null;
+            InetAddress address = null;
+            long lastOnline = -1;
+            if (proxy != null) {
+                server = networkState.getServer(uuid);
+                if (server == null)
+                    server = data.get("server");
+                if (data.get("ip") != null) {
+                    try {
+                        address = InetAddress.getByName(data.get("ip"));
+                    } catch (UnknownHostException ignored) {
+                    }
+                }
+                lastOnline = 0;
+            } else if (data.get("online") != null) {
+                try {
+                    lastOnline = Long.parseLong(data.get("online"));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            profiles.put(uuid, new PlayerProfile(uuid, data.get("name"), proxy, server, address, lastOnline));
+        }
+        return profiles;
+    }
+
     final InetAddress getIpAddress(@NonNull UUID uuid) {
         if (getProxy().getPlayer(uuid) != null)
             return getProxy().getPlayer(uuid).getAddress().getAddress();
@@ -275,9 +449,9 @@ public final class RedisBungee extends Plugin {
         if (pool != null) {
             Jedis tmpRsc = pool.getResource();
             try {
-                String result = tmpRsc.hget("player:" + uuid, "ip");
+                byte[] result = tmpRsc.hget(RedisKeys.playerBytes(uuid), RedisKeys.IP_FIELD);
                 if (result != null)
-                    ia = InetAddress.getByName(result);
+                    ia = InetAddress.getByName(SafeEncoder.encode(result));
             } catch (JedisConnectionException e) {
                 // Redis server has disappeared!
                 getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
@@ -293,20 +467,142 @@ public final class RedisBungee extends Plugin {
     }
 
     final void sendProxyCommand(@NonNull String proxyId, @NonNull String command) {
-        checkArgument(getServerIds().contains(proxyId) || proxyId.equals("allservers"), "proxyId is invalid");
+        checkArgument(snapshot.isAlive(proxyId) || proxyId.equals("allservers"), "proxyId is invalid");
+        publish("redisbungee-" + proxyId, command);
+    }
+
+    final void publish(@NonNull String channel, @NonNull String message) {
         Jedis jedis = pool.getResource();
         try {
-            jedis.publish("redisbungee-" + proxyId, command);
+            jedis.publish(channel, message);
         } catch (JedisConnectionException e) {
             // Redis server has disappeared!
             getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
             pool.returnBrokenResource(jedis);
-            throw new RuntimeException("Unable to publish command", e);
+            throw new RuntimeException("Unable to publish message", e);
         } finally {
             pool.returnResource(jedis);
         }
     }
 
+    final void publishBinary(@NonNull String channel, byte[] message) {
+        byte[] data = PayloadCodec.encode(message, compressionThreshold);
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.publish(SafeEncoder.encode(channel), data);
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().log(Level.SEVERE, "Unable to get connection from pool - did your Redis server go away?", e);
+            pool.returnBrokenResource(jedis);
+            throw new RuntimeException("Unable to publish message", e);
+        } finally {
+            pool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Remove players from our set who are no longer connected to this proxy. Our set is walked with {@code SSCAN}, and
+     * the leftovers are checked against every other proxy's set in one {@code SDIFF}, so a run costs a handful of round
+     * trips no matter how many players are online.
+     */
+    private void reconcile() {
+        Set<String> local = new HashSet<>();
+        for (ProxiedPlayer player : getProxy().getPlayers())
+            local.add(player.getUniqueId().toString());
+
+        String ourSet = keys.getUsersOnline();
+        Jedis tmpRsc = pool.getResource();
+        try {
+            List<String> stale = new ArrayList<>();
+            ScanParams params = new ScanParams().count(1000);
+            String cursor = "0";
+            do {
+                ScanResult<String> result = tmpRsc.sscan(ourSet, cursor, params);
+                for (String member : result.getResult())
+                    if (!local.contains(member))
+                        stale.add(member);
+                cursor = result.getStringCursor();
+            } while (!cursor.equals("0"));
+
+            // Someone who logged in while we scanned is in the set but not in our copy of the player list.
+            for (Iterator<String> it = stale.iterator(); it.hasNext(); ) {
+                try {
+                    if (getProxy().getPlayer(UUID.fromString(it.next())) != null)
+                        it.remove();
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+            if (stale.isEmpty())
+                return;
+
+            // Which of them are not on any other proxy either?
+            List<String> others = new ArrayList<>();
+            for (String proxyId : getServerIds())
+                if (!proxyId.equals(serverId))
+                    others.add(RedisKeys.usersOnline(proxyId));
+            String scratch = keys.getReconcileScratch();
+            Pipeline pipeline = tmpRsc.pipelined();
+            pipeline.del(scratch);
+            pipeline.sadd(scratch, stale.toArray(new String[stale.size()]));
+            pipeline.pexpire(scratch, 60000);
+            others.add(0, scratch);
+            Response<Set<String>> orphaned = pipeline.sdiff(others.toArray(new String[others.size()]));
+            pipeline.del(scratch);
+            pipeline.sync();
+
+            Set<String> gone = orphaned.get();
+            List<String> elsewhere = new ArrayList<>();
+            for (String member : stale)
+                if (!gone.contains(member))
+                    elsewhere.add(member);
+            if (!gone.isEmpty()) {
+                RedisUtil.cleanUpPlayers(serverId, gone, tmpRsc);
+                getLogger().warning("Players found in set that were not found locally and globally: " + gone);
+            }
+            if (!elsewhere.isEmpty()) {
+                // Just clean up the set.
+                tmpRsc.srem(ourSet, elsewhere.toArray(new String[elsewhere.size()]));
+                getLogger().warning("Players found in set that were not found locally, but are on another proxy: " + elsewhere);
+            }
+        } catch (JedisConnectionException e) {
+            getLogger().log(Level.SEVERE, "Unable to reconcile players - did your Redis server go away?", e);
+            pool.returnBrokenResource(tmpRsc);
+        } finally {
+            pool.returnResource(tmpRsc);
+        }
+    }
+
+    /**
+     * Warm the UUID translator from the copy saved by the previous run, without holding up startup, and keep the copy
+     * up to date from then on.
+     */
+    private void loadNameCache() {
+        uuidTranslator.enablePersistence(new File(getDataFolder(), "name-cache.log"));
+        getProxy().getScheduler().runAsync(this, new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    int loaded = uuidTranslator.loadPersisted();
+                    getLogger().info("Loaded " + loaded + " cached names in "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms.");
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Unable to load the name cache", e);
+                }
+            }
+        });
+        getProxy().getScheduler().schedule(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    uuidTranslator.flushPersisted();
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Unable to save the name cache", e);
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
     @Override
     public void onEnable() {
         try {
@@ -319,36 +615,36 @@ public final class RedisBungee extends Plugin {
         if (pool != null) {
             Jedis tmpRsc = pool.getResource();
             try {
-                tmpRsc.hset("playerCounts", serverId, "0"); // reset
-                tmpRsc.hset("heartbeats", serverId, String.valueOf(System.currentTimeMillis()));
+                enableExpiryNotifications(tmpRsc);
             } finally {
                 pool.returnResource(tmpRsc);
             }
-            serverIds = getCurrentServerIds();
-            globalCount = getCurrentCount();
-            uuidTranslator = new UUIDTranslator(this);
+            snapshot = takeSnapshot();
+            mojangFetcher = new MojangFetcher(
+                    configuration.getString("mojang-profile-url", "https://api.mojang.com/profiles/minecraft"),
+                    configuration.getString("mojang-session-url", "https://sessionserver.mojang.com/session/minecraft/profile/"),
+                    configuration.getDouble("mojang-requests-per-second", 10), configuration.getInt("mojang-concurrency", 4),
+                    configuration.getInt("mojang-timeout-ms", 5000));
+            uuidTranslator = new UUIDTranslator(this, mojangFetcher, configuration.getInt("uuid-cache-size", 50000),
+                    configuration.getInt("uuid-cache-expiry-minutes", 60), configuration.getInt("uuid-negative-cache-seconds", 60));
+            if (configuration.getBoolean("uuid-cache-persist", true))
+                loadNameCache();
+            networkState = new NetworkState(this);
             getProxy().getScheduler().schedule(this, new Runnable() {
                 @Override
                 public void run() {
-                    Jedis rsc = pool.getResource();
-                    try {
-                        Pipeline pipeline = rsc.pipelined();
-                        pipeline.hset("playerCounts", serverId, String.valueOf(getProxy().getOnlineCount()));
-                        pipeline.hset("heartbeats", serverId, String.valueOf(System.currentTimeMillis()));
-                        pipeline.sync();
-                    } catch (JedisConnectionException e) {
-                        // Redis server has disappeared!
-                        getLogger().log(Level.SEVERE, "Unable to update proxy counts - did your Redis server go away?", e);
-                        pool.returnBrokenResource(rsc);
-                    } finally {
-                        pool.returnResource(rsc);
-                    }
-                    serverIds = getCurrentServerIds();
-                    globalCount = getCurrentCount();
+                    snapshot = takeSnapshot();
+                    networkState.retainProxies(snapshot.getProxySet());
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+            getProxy().getScheduler().schedule(this, new Runnable() {
+                @Override
+                public void run() {
+                    networkState.resync();
                 }
-            }, 0, 3, TimeUnit.SECONDS);
+            }, 30, 30, TimeUnit.SECONDS);
             consumer = new RedisBungeeConsumer(this);
-            getProxy().getScheduler().runAsync(this, consumer);
+            consumer.start();
             if (configuration.getBoolean("register-bungee-commands", true)) {
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.GlistCommand(this));
                 getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.FindCommand(this));
@@ -358,39 +654,54 @@ public final class RedisBungee extends Plugin {
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.SendToAll(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.ServerId(this));
             getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.ServerIds());
+            getProxy().getPluginManager().registerCommand(this, new RedisBungeeCommands.StatsCommand(this));
             api = new RedisBungeeAPI(this);
-            getProxy().getPluginManager().registerListener(this, new RedisBungeeListener(this));
+            asyncExecutor = new AsyncExecutor(configuration.getInt("async-api-threads", 4),
+                    configuration.getInt("async-api-queue-capacity", 1000));
+            batcher = new HashFieldBatcher(this, Math.max(1, configuration.getInt("async-api-batch-queue-capacity", 1000)),
+                    Math.max(1, configuration.getInt("async-api-batch-size", 500)));
+            getProxy().getScheduler().runAsync(this, batcher);
+            asyncApi = new RedisBungeeAsyncAPI(this, api, asyncExecutor);
+            final RedisBungeeListener listener = new RedisBungeeListener(this);
+            getProxy().getPluginManager().registerListener(this, listener);
+            getProxy().getScheduler().schedule(this, new Runnable() {
+                @Override
+                public void run() {
+                    listener.releaseAbandonedClaims();
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+            pubSubRegistry = new PubSubRegistry<>(NetworkState.DELTA_CHANNEL, RedisUtil.EXPIRED_CHANNEL);
+            binaryPubSubRegistry = new PubSubRegistry<>();
+            compressionThreshold = Math.max(0, configuration.getInt("pubsub-compression-threshold", 1024));
+            PubSubHandler commandHandler = new ProxyCommandHandler();
+            for (String channel : new String[]{"redisbungee-" + serverId, "redisbungee-allservers"}) {
+                pubSubRegistry.register(channel, commandHandler);
+                // Plugins have always been able to watch proxy commands go by.
+                pubSubRegistry.registerEventChannel(channel);
+            }
+            rpcManager = new RpcManager(this);
+            rpcManager.start();
+            playerActions = new PlayerActions(this);
+            playerActions.start();
+            dispatcher = new PubSubDispatcher(this);
+            dispatcher.start();
             psl = new PubSubListener();
             getProxy().getScheduler().runAsync(this, psl);
+            // Read the network state only once we hear its deltas, so that no change can slip between the two. Deltas
+            // arriving in the meantime are held back until the read is done.
+            try {
+                if (!psl.awaitSubscribed(5, TimeUnit.SECONDS))
+                    getLogger().warning("Not yet subscribed to " + NetworkState.DELTA_CHANNEL + "; some player changes may be missed.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            networkState.bootstrap();
+            // Not started until a plugin registers a binary channel, so that nobody else pays for the connection.
+            bpsl = new BinaryPubSubListener();
             getProxy().getScheduler().schedule(this, new Runnable() {
                 @Override
                 public void run() {
-                    Jedis tmpRsc = pool.getResource();
-                    try {
-                        Collection<String> players = getLocalPlayersAsUuidStrings();
-                        for (String member : tmpRsc.smembers("server:" + serverId + ":usersOnline"))
-                            if (!players.contains(member)) {
-                                // Are they simply on a different proxy?
-                                boolean found = false;
-                                for (String proxyId : getServerIds()) {
-                                    if (proxyId.equals(serverId)) continue;
-                                    if (tmpRsc.sismember("server:" + proxyId + ":usersOnline", member)) {
-                                        // Just clean up the set.
-                                        found = true;
-                                        break;
-                                    }
-                                }
-                                if (!found) {
-                                    RedisUtil.cleanUpPlayer(member, tmpRsc);
-                                    getLogger().warning("Player found in set that was not found locally and globally: " + member);
-                                } else {
-                                    tmpRsc.srem("server:" + serverId + ":usersOnline", member);
-                                    getLogger().warning("Player found in set that was not found locally, but is on another proxy: " + member);
-                                }
-                            }
-                    } finally {
-                        pool.returnResource(tmpRsc);
-                    }
+                    reconcile();
                 }
             }, 0, 3, TimeUnit.MINUTES);
         }
@@ -402,23 +713,41 @@ public final class RedisBungee extends Plugin {
         if (pool != null) {
             // Poison the PubSub listener
             getProxy().getScheduler().cancel(this);
+            // Hold on to our lease while the consumer drains, so that nobody reclaims us in the middle of it.
+            Jedis leaseRsc = pool.getResource();
+            try {
+                leaseRsc.pexpire(keys.getLease(),
+                        leaseTimeout + TimeUnit.SECONDS.toMillis(configuration.getInt("consumer-shutdown-timeout", 10)));
+            } catch (JedisConnectionException ignored) {
+                pool.returnBrokenResource(leaseRsc);
+            } finally {
+                pool.returnResource(leaseRsc);
+            }
             getLogger().info("Waiting for consumer to finish writing data...");
             consumer.stop();
             Jedis tmpRsc = pool.getResource();
             try {
-                tmpRsc.hdel("playerCounts", serverId);
-                tmpRsc.hdel("heartbeats", serverId);
-                if (tmpRsc.scard("server:" + serverId + ":usersOnline") > 0) {
-                    Set<String> players = tmpRsc.smembers("server:" + serverId + ":usersOnline");
-                    Pipeline pipeline = tmpRsc.pipelined();
-                    for (String member : players)
-                        RedisUtil.cleanUpPlayer(member, pipeline);
-
-                    pipeline.sync();
+                tmpRsc.hdel(RedisKeys.PLAYER_COUNTS, serverId);
+                tmpRsc.srem(RedisKeys.PROXIES, serverId);
+                if (tmpRsc.scard(keys.getUsersOnline()) > 0) {
+                    Set<String> players = tmpRsc.smembers(keys.getUsersOnline());
+                    RedisUtil.cleanUpPlayers(serverId, players, tmpRsc);
                 }
+                // Only now that our players are gone may our lease go too.
+                tmpRsc.del(keys.getLease());
             } finally {
                 pool.returnResource(tmpRsc);
             }
+            batcher.stop();
+            rpcManager.stop();
+            dispatcher.stop();
+            asyncExecutor.shutdown();
+            mojangFetcher.shutdown();
+            try {
+                uuidTranslator.flushPersisted();
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Unable to save the name cache", e);
+            }
             pool.destroy();
         }
     }
@@ -444,6 +773,7 @@ public final class RedisBungee extends Plugin {
         int redisPort = configuration.getInt("redis-port", 6379);
         String redisPassword = configuration.getString("redis-password");
         serverId = configuration.getString("server-id");
+        leaseTimeout = Math.max(1500, configuration.getInt("proxy-lease-timeout-ms", 3000));
 
         if (redisPassword != null && (redisPassword.isEmpty() || redisPassword.equals("none"))) {
             redisPassword = null;
@@ -453,6 +783,7 @@ public final class RedisBungee extends Plugin {
         if (serverId == null || serverId.isEmpty()) {
             throw new RuntimeException("server-id is not specified in the configuration or is empty");
         }
+        keys = new RedisKeys(serverId);
 
         if (redisServer != null && !redisServer.isEmpty()) {
             JedisPoolConfig config = new JedisPoolConfig();
@@ -463,22 +794,27 @@ public final class RedisBungee extends Plugin {
             try {
                 rsc = pool.getResource();
                 rsc.exists(String.valueOf(System.currentTimeMillis()));
-                // If that worked, now we can check for an existing, alive Bungee:
-                File crashFile = new File(getDataFolder(), "restarted_from_crash.txt");
-                if (crashFile.exists())
-                    crashFile.delete();
-                else if (rsc.hexists("heartbeats", serverId)) {
+                // If that worked, now we can check for an existing, alive Bungee. A proxy coming back from a crash
+                // only has to wait for its old lease to run out.
+                String leaseKey = keys.getLease();
+                Long ttl = rsc.pttl(leaseKey);
+                if (ttl != null && ttl > 0) {
+                    getLogger().info("Waiting " + ttl + "ms for the previous lease on " + serverId + " to expire...");
                     try {
-                        Long value = Long.valueOf(rsc.hget("heartbeats", serverId));
-                        if (value != null && System.currentTimeMillis() < value + 20000) {
-                            getLogger().severe("You have launched a possible imposter BungeeCord instance. Another instance is already running.");
-                            getLogger().severe("For data consistency reasons, RedisBungee will now disable itself.");
-                            getLogger().severe("If this instance is coming up from a crash, create a file in your RedisBungee plugins directory with the name 'restarted_from_crash.txt' and RedisBungee will not perform this check.");
-                            throw new RuntimeException("Possible imposter instance!");
-                        }
-                    } catch (NumberFormatException ignored) {
+                        Thread.sleep(ttl + 100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
                 }
+                if (!rsc.exists(leaseKey)) {
+                    // Clean up after a crashed predecessor that nobody else reclaimed.
+                    RedisUtil.reclaimProxy(serverId, serverId, rsc);
+                }
+                if (!"OK".equals(rsc.set(leaseKey, serverId, "NX", "PX", leaseTimeout))) {
+                    getLogger().severe("You have launched a possible imposter BungeeCord instance. Another instance is already running.");
+                    getLogger().severe("For data consistency reasons, RedisBungee will now disable itself.");
+                    throw new RuntimeException("Possible imposter instance!");
+                }
                 getLogger().log(Level.INFO, "Successfully connected to Redis.");
             } catch (JedisConnectionException e) {
                 if (rsc != null)
@@ -497,29 +833,152 @@ public final class RedisBungee extends Plugin {
         }
     }
 
+    private class ProxyCommandHandler implements PubSubHandler {
+        @Override
+        public void onMessage(String channel, String message) {
+            if (message.startsWith("/"))
+                message = message.substring(1);
+            getLogger().info("Invoking command via PubSub: /" + message);
+            getProxy().getPluginManager().dispatchCommand(RedisBungeeCommandSender.instance, message);
+        }
+    }
+
     class PubSubListener implements Runnable {
         private Jedis rsc;
         private JedisPubSubHandler jpsh;
+        private volatile boolean subscribed = false;
+        private final CountDownLatch subscribedLatch = new CountDownLatch(1);
 
         private PubSubListener() {
         }
 
+        boolean awaitSubscribed(long timeout, TimeUnit unit) throws InterruptedException {
+            return subscribedLatch.await(timeout, unit);
+        }
+
         @Override
         public void run() {
             try {
                 rsc = pool.getResource();
                 jpsh = new JedisPubSubHandler();
-                rsc.subscribe(jpsh, "redisbungee-" + serverId, "redisbungee-allservers");
+                rsc.subscribe(jpsh, NetworkState.DELTA_CHANNEL, RedisUtil.EXPIRED_CHANNEL);
             } catch (JedisException | ClassCastException ignored) {
             }
         }
 
+        /**
+         * Called once the connection is in subscriber mode. Everything registered up to now is subscribed in one go;
+         * anything registered later is subscribed as it comes in, as {@link #subscribed} is already set.
+         */
+        private void subscribeRegistered() {
+            subscribed = true;
+            subscribedLatch.countDown();
+            Set<String> channels = pubSubRegistry.getChannels();
+            if (!channels.isEmpty())
+                jpsh.subscribe(channels.toArray(new String[channels.size()]));
+            Set<String> patterns = pubSubRegistry.getPatterns();
+            if (!patterns.isEmpty())
+                jpsh.psubscribe(patterns.toArray(new String[patterns.size()]));
+        }
+
         public void addChannel(String... channel) {
-            jpsh.subscribe(channel);
+            if (subscribed)
+                jpsh.subscribe(channel);
         }
 
         public void removeChannel(String... channel) {
-            jpsh.unsubscribe(channel);
+            if (subscribed)
+                jpsh.unsubscribe(channel);
+        }
+
+        public void addPattern(String... pattern) {
+            if (subscribed)
+                jpsh.psubscribe(pattern);
+        }
+
+        public void removePattern(String... pattern) {
+            if (subscribed)
+                jpsh.punsubscribe(pattern);
+        }
+    }
+
+    /**
+     * Listens to binary channels on a connection of its own, as a {@link JedisPubSub} can only deal in strings.
+     */
+    class BinaryPubSubListener implements Runnable {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private Jedis rsc;
+        private BinaryJedisPubSubHandler jpsh;
+        private volatile boolean subscribed = false;
+
+        private BinaryPubSubListener() {
+        }
+
+        @Override
+        public void run() {
+            try {
+                rsc = pool.getResource();
+                jpsh = new BinaryJedisPubSubHandler();
+                // SUBSCRIBE needs a channel to start with; the registered ones follow in subscribeRegistered().
+                rsc.subscribe(jpsh, SafeEncoder.encode("redisbungee-binary-" + serverId));
+            } catch (JedisException | ClassCastException ignored) {
+            }
+        }
+
+        private void subscribeRegistered() {
+            subscribed = true;
+            Set<String> channels = binaryPubSubRegistry.getChannels();
+            if (!channels.isEmpty())
+                jpsh.subscribe(encode(channels.toArray(new String[channels.size()])));
+        }
+
+        public void addChannel(String... channel) {
+            if (started.compareAndSet(false, true))
+                getProxy().getScheduler().runAsync(RedisBungee.this, this);
+            else if (subscribed)
+                jpsh.subscribe(encode(channel));
+        }
+
+        public void removeChannel(String... channel) {
+            if (subscribed)
+                jpsh.unsubscribe(encode(channel));
+        }
+
+        private byte[][] encode(String... channels) {
+            byte[][] encoded = new byte[channels.length][];
+            for (int i = 0; i < channels.length; i++)
+                encoded[i] = SafeEncoder.encode(channels[i]);
+            return encoded;
+        }
+    }
+
+    class BinaryJedisPubSubHandler extends BinaryJedisPubSub {
+
+        @Override
+        public void onMessage(byte[] channel, byte[] message) {
+            dispatcher.dispatchBinary(SafeEncoder.encode(channel), message);
+        }
+
+        @Override
+        public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+        }
+
+        @Override
+        public void onSubscribe(byte[] channel, int subscribedChannels) {
+            if (!bpsl.subscribed)
+                bpsl.subscribeRegistered();
+        }
+
+        @Override
+        public void onUnsubscribe(byte[] channel, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPUnsubscribe(byte[] pattern, int subscribedChannels) {
+        }
+
+        @Override
+        public void onPSubscribe(byte[] pattern, int subscribedChannels) {
         }
     }
 
@@ -528,20 +987,34 @@ public final class RedisBungee extends Plugin {
         @Override
         public void onMessage(final String s, final String s2) {
             if (s2.trim().length() == 0) return;
-            getProxy().getScheduler().runAsync(RedisBungee.this, new Runnable() {
-                @Override
-                public void run() {
-                    getProxy().getPluginManager().callEvent(new PubSubMessageEvent(s, s2));
+            if (s.equals(NetworkState.DELTA_CHANNEL)) {
+                // Applied inline so that deltas are never reordered.
+                networkState.handleDelta(s2);
+                return;
+            }
+            if (s.equals(RedisUtil.EXPIRED_CHANNEL)) {
+                String proxy = RedisKeys.proxyFromLease(s2);
+                if (proxy != null) {
+                    if (proxy.equals(serverId))
+                        recoverLease();
+                    else
+                        reclaim(proxy);
                 }
-            });
+                return;
+            }
+            dispatcher.dispatch(s, s2);
         }
 
         @Override
         public void onPMessage(String s, String s2, String s3) {
+            if (s3.trim().length() == 0) return;
+            dispatcher.dispatch(s, s2, s3);
         }
 
         @Override
         public void onSubscribe(String s, int i) {
+            if (!psl.subscribed)
+                psl.subscribeRegistered();
         }
 
         @Override
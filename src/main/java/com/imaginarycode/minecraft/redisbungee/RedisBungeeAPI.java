@@ -6,18 +6,23 @@
  */
 package com.imaginarycode.minecraft.redisbungee;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import lombok.NonNull;
+import net.md_5.bungee.api.chat.BaseComponent;
 import net.md_5.bungee.api.config.ServerInfo;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * This class exposes some internal RedisBungee functions. You obtain an instance of this object by invoking {@link RedisBungee#getApi()}.
  *
@@ -77,19 +82,14 @@ public class RedisBungeeAPI {
      * Get a combined list of players on this network, as a collection of usernames.
      * <p>
      * <strong>Note that this function returns an immutable {@link java.util.Collection}, and usernames
-     * are lazily calculated (but cached, see the contract of {@link #getNameFromUuid(java.util.UUID)}).</strong>
+     * are resolved in a single batch (see the contract of {@link #getNamesFromUuids(java.util.Collection, boolean)}).</strong>
      *
      * @return a Set with all players found
      * @since 0.3
-     * @see #getNameFromUuid(java.util.UUID)
+     * @see #getNamesFromUuids(java.util.Collection, boolean)
      */
     public final Collection<String> getHumanPlayersOnline() {
-        return Collections2.transform(getPlayersOnline(), new Function<UUID, String>() {
-            @Override
-            public String apply(UUID uuid) {
-                return getNameFromUuid(uuid, false);
-            }
-        });
+        return ImmutableList.copyOf(getNamesFromUuids(getPlayersOnline(), false).values());
     }
 
     /**
@@ -133,6 +133,23 @@ public class RedisBungeeAPI {
         return plugin.getIpAddress(player);
     }
 
+    /**
+     * Fetch everything known about the given players at once. Players on this proxy are filled in from memory, and
+     * everyone else is read from Redis in a single round trip, so this is far cheaper than calling
+     * {@link #getServerFor(java.util.UUID)}, {@link #getPlayerIp(java.util.UUID)}, {@link #getLastOnline(java.util.UUID)}
+     * and {@link #getNameFromUuid(java.util.UUID)} for each player.
+     * <p>
+     * Unlike {@link #getNameFromUuid(java.util.UUID)}, this never asks Mojang: players whose name was never recorded
+     * have a null name.
+     *
+     * @param players the players to fetch
+     * @return an immutable map with a profile for every player given
+     * @since 0.3.3
+     */
+    public final Map<UUID, PlayerProfile> getProfiles(@NonNull Collection<UUID> players) {
+        return ImmutableMap.copyOf(plugin.getProfiles(players));
+    }
+
     /**
      * Sends a proxy command to all proxies.
      *
@@ -157,6 +174,44 @@ public class RedisBungeeAPI {
         plugin.sendProxyCommand(proxyId, command);
     }
 
+    /**
+     * Send a message to a player, wherever they are on the network. Unlike a proxy command, this is only sent to the
+     * proxy the player is on.
+     *
+     * @param player  the UUID of the player
+     * @param message the message to send
+     * @return false if the player is not online
+     * @since 0.3.3
+     */
+    public final boolean sendMessage(@NonNull UUID player, @NonNull BaseComponent... message) {
+        return plugin.getPlayerActions().sendMessage(player, message);
+    }
+
+    /**
+     * Kick a player from the network, wherever they are on it.
+     *
+     * @param player the UUID of the player
+     * @param reason the reason to show them
+     * @return false if the player is not online
+     * @since 0.3.3
+     */
+    public final boolean kickPlayer(@NonNull UUID player, @NonNull BaseComponent... reason) {
+        return plugin.getPlayerActions().kick(player, reason);
+    }
+
+    /**
+     * Move a player to another server, wherever they are on the network. The server must be known by the name to the
+     * proxy the player is on.
+     *
+     * @param player the UUID of the player
+     * @param server the server to move them to
+     * @return false if the player is not online
+     * @since 0.3.3
+     */
+    public final boolean connect(@NonNull UUID player, @NonNull ServerInfo server) {
+        return plugin.getPlayerActions().connect(player, server);
+    }
+
     /**
      * Get the current BungeeCord server ID for this server.
      *
@@ -181,12 +236,20 @@ public class RedisBungeeAPI {
 
     /**
      * Register (a) PubSub channel(s), so that you may handle {@link com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent} for it.
+     * <p>
+     * The event is passed to every listener on the proxy for every message, so new code should prefer
+     * {@link #registerPubSubHandler(String, PubSubHandler)}.
      *
      * @param channels the channels to register
      * @since 0.3
      */
     public final void registerPubSubChannels(String... channels) {
-        RedisBungee.getPubSubListener().addChannel(channels);
+        List<String> subscribe = new ArrayList<>();
+        for (String channel : channels)
+            if (plugin.getPubSubRegistry().registerEventChannel(channel))
+                subscribe.add(channel);
+        if (!subscribe.isEmpty())
+            RedisBungee.getPubSubListener().addChannel(subscribe.toArray(new String[subscribe.size()]));
     }
 
     /**
@@ -196,15 +259,167 @@ public class RedisBungeeAPI {
      * @since 0.3
      */
     public final void unregisterPubSubChannels(String... channels) {
-        RedisBungee.getPubSubListener().removeChannel(channels);
+        List<String> unsubscribe = new ArrayList<>();
+        for (String channel : channels)
+            if (plugin.getPubSubRegistry().unregisterEventChannel(channel))
+                unsubscribe.add(channel);
+        if (!unsubscribe.isEmpty())
+            RedisBungee.getPubSubListener().removeChannel(unsubscribe.toArray(new String[unsubscribe.size()]));
+    }
+
+    /**
+     * Register a handler for a PubSub channel. Unlike {@link #registerPubSubChannels(String...)}, messages are handed
+     * straight to the handlers for their channel instead of being posted as an event to every listener.
+     * <p>
+     * A handler may be registered for any number of channels, and a channel may have any number of handlers.
+     *
+     * @param channel the channel to handle
+     * @param handler the handler to call for each message
+     * @since 0.3.3
+     */
+    public final void registerPubSubHandler(@NonNull String channel, @NonNull PubSubHandler handler) {
+        if (plugin.getPubSubRegistry().register(channel, handler))
+            RedisBungee.getPubSubListener().addChannel(channel);
+    }
+
+    /**
+     * Unregister a handler registered with {@link #registerPubSubHandler(String, PubSubHandler)}.
+     *
+     * @param channel the channel the handler was registered for
+     * @param handler the handler to remove
+     * @since 0.3.3
+     */
+    public final void unregisterPubSubHandler(@NonNull String channel, @NonNull PubSubHandler handler) {
+        if (plugin.getPubSubRegistry().unregister(channel, handler))
+            RedisBungee.getPubSubListener().removeChannel(channel);
+    }
+
+    /**
+     * Register a handler for every PubSub channel matching a glob-style pattern, such as {@code myplugin-*}. The
+     * pattern is matched by Redis, so a message is only sent to this proxy if some pattern wants it.
+     *
+     * @param pattern the pattern to handle
+     * @param handler the handler to call for each message
+     * @since 0.3.3
+     */
+    public final void registerPubSubPatternHandler(@NonNull String pattern, @NonNull PubSubHandler handler) {
+        if (plugin.getPubSubRegistry().registerPattern(pattern, handler))
+            RedisBungee.getPubSubListener().addPattern(pattern);
+    }
+
+    /**
+     * Unregister a handler registered with {@link #registerPubSubPatternHandler(String, PubSubHandler)}.
+     *
+     * @param pattern the pattern the handler was registered for
+     * @param handler the handler to remove
+     * @since 0.3.3
+     */
+    public final void unregisterPubSubPatternHandler(@NonNull String pattern, @NonNull PubSubHandler handler) {
+        if (plugin.getPubSubRegistry().unregisterPattern(pattern, handler))
+            RedisBungee.getPubSubListener().removePattern(pattern);
+    }
+
+    /**
+     * Register (a) binary PubSub channel(s), so that you may handle
+     * {@link com.imaginarycode.minecraft.redisbungee.events.BinaryPubSubMessageEvent} for it.
+     * <p>
+     * Binary channels are read over a connection of their own and carry raw bytes, so there is no need to encode
+     * structured data as text. Only messages sent with {@link #publishBinary(String, byte[])} can be read from them.
+     *
+     * @param channels the channels to register
+     * @since 0.3.3
+     */
+    public final void registerBinaryPubSubChannels(String... channels) {
+        List<String> subscribe = new ArrayList<>();
+        for (String channel : channels)
+            if (plugin.getBinaryPubSubRegistry().registerEventChannel(channel))
+                subscribe.add(channel);
+        if (!subscribe.isEmpty())
+            RedisBungee.getBinaryPubSubListener().addChannel(subscribe.toArray(new String[subscribe.size()]));
+    }
+
+    /**
+     * Unregister (a) binary PubSub channel(s).
+     *
+     * @param channels the channels to unregister
+     * @since 0.3.3
+     */
+    public final void unregisterBinaryPubSubChannels(String... channels) {
+        List<String> unsubscribe = new ArrayList<>();
+        for (String channel : channels)
+            if (plugin.getBinaryPubSubRegistry().unregisterEventChannel(channel))
+                unsubscribe.add(channel);
+        if (!unsubscribe.isEmpty())
+            RedisBungee.getBinaryPubSubListener().removeChannel(unsubscribe.toArray(new String[unsubscribe.size()]));
+    }
+
+    /**
+     * Register a handler for a binary PubSub channel.
+     *
+     * @param channel the channel to handle
+     * @param handler the handler to call for each message
+     * @see #registerBinaryPubSubChannels(String...)
+     * @since 0.3.3
+     */
+    public final void registerBinaryPubSubHandler(@NonNull String channel, @NonNull BinaryPubSubHandler handler) {
+        if (plugin.getBinaryPubSubRegistry().register(channel, handler))
+            RedisBungee.getBinaryPubSubListener().addChannel(channel);
+    }
+
+    /**
+     * Unregister a handler registered with {@link #registerBinaryPubSubHandler(String, BinaryPubSubHandler)}.
+     *
+     * @param channel the channel the handler was registered for
+     * @param handler the handler to remove
+     * @since 0.3.3
+     */
+    public final void unregisterBinaryPubSubHandler(@NonNull String channel, @NonNull BinaryPubSubHandler handler) {
+        if (plugin.getBinaryPubSubRegistry().unregister(channel, handler))
+            RedisBungee.getBinaryPubSubListener().removeChannel(channel);
+    }
+
+    /**
+     * Publish a message on a binary PubSub channel. Messages of at least {@code pubsub-compression-threshold} bytes
+     * are compressed on the way, and decompressed again before any handler sees them.
+     *
+     * @param channel the channel to publish on
+     * @param message the message
+     * @since 0.3.3
+     */
+    public final void publishBinary(@NonNull String channel, @NonNull byte[] message) {
+        plugin.publishBinary(channel, message);
+    }
+
+    /**
+     * Register a handler to answer requests for a method sent by other proxies through
+     * {@link RedisBungeeAsyncAPI#request(String, String, String)} and its relatives. Each method may have only one
+     * handler, so pick names unlikely to clash with other plugins, such as {@code myplugin:method}.
+     *
+     * @param method  the method to answer
+     * @param handler the handler to answer it with
+     * @throws IllegalArgumentException if the method already has a handler
+     * @since 0.3.3
+     */
+    public final void registerRequestHandler(@NonNull String method, @NonNull RequestHandler handler) {
+        checkArgument(plugin.getRpcManager().register(method, handler), "method %s already has a handler", method);
+    }
+
+    /**
+     * Unregister the handler for a method. Requests for it are then answered with a {@link RemoteRequestException}.
+     *
+     * @param method the method to stop answering
+     * @since 0.3.3
+     */
+    public final void unregisterRequestHandler(@NonNull String method) {
+        plugin.getRpcManager().unregister(method);
     }
 
     /**
      * Fetch a name from the specified UUID. UUIDs are cached locally and in Redis. This function falls back to Mojang
      * as a last resort, so calls <strong>may</strong> be blocking.
      * <p>
-     * For the common use case of translating a list of UUIDs into names, use {@link #getHumanPlayersOnline()}
-     * as the efficiency of that function is slightly greater as the names are calculated lazily.
+     * For the common use case of translating a list of UUIDs into names, use {@link #getNamesFromUuids(java.util.Collection)}
+     * as it looks up every name in a single batch.
      * <p>
      * If performance is a concern, use {@link #getNameFromUuid(java.util.UUID, boolean)} as this allows you to disable Mojang lookups.
      *
@@ -220,8 +435,8 @@ public class RedisBungeeAPI {
      * Fetch a name from the specified UUID. UUIDs are cached locally and in Redis. This function can fall back to Mojang
      * as a last resort if {@code expensiveLookups} is true, so calls <strong>may</strong> be blocking.
      * <p>
-     * For the common use case of translating the list of online players into names, use {@link #getHumanPlayersOnline()}
-     * as the efficiency of that function is slightly greater as the names are calculated lazily.
+     * For the common use case of translating a list of UUIDs into names, use {@link #getNamesFromUuids(java.util.Collection, boolean)}
+     * as it looks up every name in a single batch.
      * <p>
      * If performance is a concern, set {@code expensiveLookups} to false as this will disable lookups via Mojang.
      *
@@ -267,4 +482,58 @@ public class RedisBungeeAPI {
     public final UUID getUuidFromName(@NonNull String name, boolean expensiveLookups) {
         return plugin.getUuidTranslator().getTranslatedUuid(name, expensiveLookups);
     }
+
+    /**
+     * Fetch the names for many UUIDs at once. Names are cached locally and in Redis, and all names missing locally are
+     * read from Redis in a single round trip. This function falls back to Mojang as a last resort, so calls
+     * <strong>may</strong> be blocking.
+     *
+     * @param uuids the UUIDs to fetch the names for
+     * @return an immutable map of UUID to name, leaving out any UUID whose name could not be found
+     * @since 0.3.3
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> uuids) {
+        return getNamesFromUuids(uuids, true);
+    }
+
+    /**
+     * Fetch the names for many UUIDs at once. Names are cached locally and in Redis, and all names missing locally are
+     * read from Redis in a single round trip. This function can fall back to Mojang as a last resort if
+     * {@code expensiveLookups} is true, so calls <strong>may</strong> be blocking.
+     *
+     * @param uuids the UUIDs to fetch the names for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return an immutable map of UUID to name, leaving out any UUID whose name could not be found
+     * @since 0.3.3
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> uuids, boolean expensiveLookups) {
+        return ImmutableMap.copyOf(plugin.getUuidTranslator().getNamesFromUuids(uuids, expensiveLookups));
+    }
+
+    /**
+     * Fetch the UUIDs for many names at once. Names are cached locally and in Redis, and all UUIDs missing locally are
+     * read from Redis in a single round trip. This function falls back to Mojang, 100 names at a time, as a last resort,
+     * so calls <strong>may</strong> be blocking.
+     *
+     * @param names the names to fetch the UUIDs for
+     * @return an immutable map of name to UUID, leaving out any name whose UUID could not be found
+     * @since 0.3.3
+     */
+    public final Map<String, UUID> getUuidsFromNames(@NonNull Collection<String> names) {
+        return getUuidsFromNames(names, true);
+    }
+
+    /**
+     * Fetch the UUIDs for many names at once. Names are cached locally and in Redis, and all UUIDs missing locally are
+     * read from Redis in a single round trip. This function can fall back to Mojang, 100 names at a time, as a last
+     * resort if {@code expensiveLookups} is true, so calls <strong>may</strong> be blocking.
+     *
+     * @param names the names to fetch the UUIDs for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return an immutable map of name to UUID, leaving out any name whose UUID could not be found
+     * @since 0.3.3
+     */
+    public final Map<String, UUID> getUuidsFromNames(@NonNull Collection<String> names, boolean expensiveLookups) {
+        return ImmutableMap.copyOf(plugin.getUuidTranslator().getUuidsFromNames(names, expensiveLookups));
+    }
 }
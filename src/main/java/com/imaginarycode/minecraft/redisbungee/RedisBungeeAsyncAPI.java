@@ -0,0 +1,385 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.*;
+import lombok.NonNull;
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.config.ServerInfo;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The non-blocking counterpart to {@link RedisBungeeAPI}. You obtain an instance of this object by invoking
+ * {@link RedisBungee#getAsyncApi()}.
+ * <p>
+ * Every method returns at once. Lookups that need Redis or Mojang run on a small, bounded thread pool, and reads of
+ * player data issued close together are sent to Redis as a single pipeline. When the pool is saturated, the returned
+ * future fails with a {@link java.util.concurrent.RejectedExecutionException} instead of blocking the caller.
+ *
+ * @since 0.3.3
+ */
+public class RedisBungeeAsyncAPI {
+    private final RedisBungee plugin;
+    private final RedisBungeeAPI api;
+    private final ListeningExecutorService executor;
+
+    RedisBungeeAsyncAPI(RedisBungee plugin, RedisBungeeAPI api, AsyncExecutor executor) {
+        this.plugin = plugin;
+        this.api = api;
+        this.executor = MoreExecutors.listeningDecorator(executor);
+    }
+
+    /**
+     * @see RedisBungeeAPI#getPlayerCount()
+     */
+    public final ListenableFuture<Integer> getPlayerCount() {
+        return Futures.immediateFuture(api.getPlayerCount());
+    }
+
+    /**
+     * @see RedisBungeeAPI#getLastOnline(java.util.UUID)
+     */
+    public final ListenableFuture<Long> getLastOnline(@NonNull final UUID player) {
+        if (plugin.getProxy().getPlayer(player) != null || plugin.getNetworkState().getProxy(player) != null)
+            return Futures.immediateFuture(0L);
+        return Futures.transform(plugin.getBatcher().hget(RedisKeys.playerBytes(player), RedisKeys.ONLINE_FIELD), new AsyncFunction<String, Long>() {
+            @Override
+            public ListenableFuture<Long> apply(String result) {
+                if (result == null)
+                    return Futures.immediateFuture(-1L);
+                try {
+                    return Futures.immediateFuture(Long.valueOf(result));
+                } catch (NumberFormatException e) {
+                    // Let the blocking version repair it.
+                    return submit(new Callable<Long>() {
+                        @Override
+                        public Long call() {
+                            return api.getLastOnline(player);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getServerFor(java.util.UUID)
+     */
+    public final ListenableFuture<ServerInfo> getServerFor(@NonNull UUID player) {
+        return Futures.immediateFuture(api.getServerFor(player));
+    }
+
+    /**
+     * @see RedisBungeeAPI#getPlayersOnline()
+     */
+    public final ListenableFuture<Set<UUID>> getPlayersOnline() {
+        return Futures.immediateFuture(api.getPlayersOnline());
+    }
+
+    /**
+     * @see RedisBungeeAPI#getHumanPlayersOnline()
+     */
+    public final ListenableFuture<Collection<String>> getHumanPlayersOnline() {
+        return submit(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() {
+                return api.getHumanPlayersOnline();
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getServerToPlayers()
+     */
+    public final ListenableFuture<Multimap<String, UUID>> getServerToPlayers() {
+        return Futures.immediateFuture(api.getServerToPlayers());
+    }
+
+    /**
+     * @see RedisBungeeAPI#getPlayersOnServer(String)
+     */
+    public final ListenableFuture<Set<UUID>> getPlayersOnServer(@NonNull String server) {
+        try {
+            return Futures.immediateFuture(api.getPlayersOnServer(server));
+        } catch (IllegalArgumentException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * @see RedisBungeeAPI#isPlayerOnline(java.util.UUID)
+     */
+    public final ListenableFuture<Boolean> isPlayerOnline(@NonNull UUID player) {
+        return Futures.transform(getLastOnline(player), new Function<Long, Boolean>() {
+            @Override
+            public Boolean apply(Long lastOnline) {
+                return lastOnline == 0;
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getPlayerIp(java.util.UUID)
+     */
+    public final ListenableFuture<InetAddress> getPlayerIp(@NonNull UUID player) {
+        if (plugin.getProxy().getPlayer(player) != null)
+            return Futures.immediateFuture(plugin.getProxy().getPlayer(player).getAddress().getAddress());
+        return Futures.transform(plugin.getBatcher().hget(RedisKeys.playerBytes(player), RedisKeys.IP_FIELD), new Function<String, InetAddress>() {
+            @Override
+            public InetAddress apply(String result) {
+                if (result == null)
+                    return null;
+                try {
+                    // The stored value is always an address literal, so this never goes to DNS.
+                    return InetAddress.getByName(result);
+                } catch (UnknownHostException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getProfiles(java.util.Collection)
+     */
+    public final ListenableFuture<Map<UUID, PlayerProfile>> getProfiles(@NonNull Collection<UUID> players) {
+        final List<UUID> copy = new ArrayList<>(players);
+        return submit(new Callable<Map<UUID, PlayerProfile>>() {
+            @Override
+            public Map<UUID, PlayerProfile> call() {
+                return api.getProfiles(copy);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#sendProxyCommand(String)
+     */
+    public final ListenableFuture<?> sendProxyCommand(@NonNull String command) {
+        return sendProxyCommand("allservers", command);
+    }
+
+    /**
+     * @see RedisBungeeAPI#sendProxyCommand(String, String)
+     */
+    public final ListenableFuture<?> sendProxyCommand(@NonNull final String proxyId, @NonNull final String command) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                api.sendProxyCommand(proxyId, command);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Send a request to another proxy, to be answered by the {@link RequestHandler} it registered for the method,
+     * waiting at most {@code rpc-timeout-ms} for the reply.
+     *
+     * @param proxyId the proxy to ask
+     * @param method  the method to call
+     * @param payload the payload to send
+     * @return a future for the reply, which fails with a {@link RemoteRequestException} if the proxy could not answer,
+     * or a {@link java.util.concurrent.TimeoutException} if it did not answer in time
+     * @see RedisBungeeAPI#registerRequestHandler(String, RequestHandler)
+     */
+    public final ListenableFuture<String> request(@NonNull String proxyId, @NonNull String method, String payload) {
+        return request(proxyId, method, payload, plugin.getRpcManager().getDefaultTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a request to another proxy, waiting at most the given time for the reply.
+     *
+     * @see #request(String, String, String)
+     */
+    public final ListenableFuture<String> request(@NonNull String proxyId, @NonNull String method, String payload,
+                                                  long timeout, @NonNull TimeUnit unit) {
+        checkArgument(plugin.getSnapshot().isAlive(proxyId), "proxyId is invalid");
+        return plugin.getRpcManager().call(proxyId, method, payload, timeout, unit);
+    }
+
+    /**
+     * Send a request to several proxies at once, waiting at most {@code rpc-timeout-ms} for the replies. The request is
+     * published only once, however many proxies it is for.
+     *
+     * @param proxyIds the proxies to ask
+     * @param method   the method to call
+     * @param payload  the payload to send
+     * @return a future for a map of proxy ID to reply, which completes once every proxy has answered or the timeout has
+     * passed. Proxies that could not answer, or did not answer in time, are left out.
+     */
+    public final ListenableFuture<Map<String, String>> request(@NonNull Collection<String> proxyIds, @NonNull String method,
+                                                               String payload) {
+        return request(proxyIds, method, payload, plugin.getRpcManager().getDefaultTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a request to several proxies at once, waiting at most the given time for the replies.
+     *
+     * @see #request(java.util.Collection, String, String)
+     */
+    public final ListenableFuture<Map<String, String>> request(@NonNull Collection<String> proxyIds, @NonNull String method,
+                                                               String payload, long timeout, @NonNull TimeUnit unit) {
+        for (String proxyId : proxyIds)
+            checkArgument(plugin.getSnapshot().isAlive(proxyId), "proxyId %s is invalid", proxyId);
+        return plugin.getRpcManager().callAll(proxyIds, method, payload, timeout, unit);
+    }
+
+    /**
+     * Send a request to every proxy in the network, including this one.
+     *
+     * @see #request(java.util.Collection, String, String)
+     */
+    public final ListenableFuture<Map<String, String>> requestAll(@NonNull String method, String payload) {
+        return request(plugin.getServerIds(), method, payload);
+    }
+
+    /**
+     * @see RedisBungeeAPI#publishBinary(String, byte[])
+     */
+    public final ListenableFuture<?> publishBinary(@NonNull final String channel, @NonNull final byte[] message) {
+        return submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                api.publishBinary(channel, message);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#sendMessage(java.util.UUID, net.md_5.bungee.api.chat.BaseComponent...)
+     */
+    public final ListenableFuture<Boolean> sendMessage(@NonNull final UUID player, @NonNull final BaseComponent... message) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return api.sendMessage(player, message);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#kickPlayer(java.util.UUID, net.md_5.bungee.api.chat.BaseComponent...)
+     */
+    public final ListenableFuture<Boolean> kickPlayer(@NonNull final UUID player, @NonNull final BaseComponent... reason) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return api.kickPlayer(player, reason);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#connect(java.util.UUID, net.md_5.bungee.api.config.ServerInfo)
+     */
+    public final ListenableFuture<Boolean> connect(@NonNull final UUID player, @NonNull final ServerInfo server) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return api.connect(player, server);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getNameFromUuid(java.util.UUID)
+     */
+    public final ListenableFuture<String> getNameFromUuid(@NonNull UUID uuid) {
+        return getNameFromUuid(uuid, true);
+    }
+
+    /**
+     * @see RedisBungeeAPI#getNameFromUuid(java.util.UUID, boolean)
+     */
+    public final ListenableFuture<String> getNameFromUuid(@NonNull final UUID uuid, final boolean expensiveLookups) {
+        return submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return api.getNameFromUuid(uuid, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getUuidFromName(String)
+     */
+    public final ListenableFuture<UUID> getUuidFromName(@NonNull String name) {
+        return getUuidFromName(name, true);
+    }
+
+    /**
+     * @see RedisBungeeAPI#getUuidFromName(String, boolean)
+     */
+    public final ListenableFuture<UUID> getUuidFromName(@NonNull final String name, final boolean expensiveLookups) {
+        return submit(new Callable<UUID>() {
+            @Override
+            public UUID call() {
+                return api.getUuidFromName(name, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getNamesFromUuids(java.util.Collection)
+     */
+    public final ListenableFuture<Map<UUID, String>> getNamesFromUuids(@NonNull Collection<UUID> uuids) {
+        return getNamesFromUuids(uuids, true);
+    }
+
+    /**
+     * @see RedisBungeeAPI#getNamesFromUuids(java.util.Collection, boolean)
+     */
+    public final ListenableFuture<Map<UUID, String>> getNamesFromUuids(@NonNull Collection<UUID> uuids, final boolean expensiveLookups) {
+        final List<UUID> copy = new ArrayList<>(uuids);
+        return submit(new Callable<Map<UUID, String>>() {
+            @Override
+            public Map<UUID, String> call() {
+                return api.getNamesFromUuids(copy, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * @see RedisBungeeAPI#getUuidsFromNames(java.util.Collection)
+     */
+    public final ListenableFuture<Map<String, UUID>> getUuidsFromNames(@NonNull Collection<String> names) {
+        return getUuidsFromNames(names, true);
+    }
+
+    /**
+     * @see RedisBungeeAPI#getUuidsFromNames(java.util.Collection, boolean)
+     */
+    public final ListenableFuture<Map<String, UUID>> getUuidsFromNames(@NonNull Collection<String> names, final boolean expensiveLookups) {
+        final List<String> copy = new ArrayList<>(names);
+        return submit(new Callable<Map<String, UUID>>() {
+            @Override
+            public Map<String, UUID> call() {
+                return api.getUuidsFromNames(copy, expensiveLookups);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+}
@@ -7,8 +7,10 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.imaginarycode.minecraft.redisbungee.util.UUIDTranslator;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
 import net.md_5.bungee.api.chat.BaseComponent;
@@ -22,6 +24,7 @@ import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class contains subclasses that are used for the commands RedisBungee overrides or includes: /glist, /find and /lastseen.
@@ -58,9 +61,12 @@ class RedisBungeeCommands {
                     if (args.length > 0 && args[0].equals("showall")) {
                         if (RedisBungee.getConfiguration().getBoolean("canonical-glist", true)) {
                             Multimap<String, UUID> serverToPlayers = RedisBungee.getApi().getServerToPlayers();
+                            Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(serverToPlayers.values(), false);
                             Multimap<String, String> human = HashMultimap.create();
                             for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
-                                human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                                // Show the UUID rather than leave the player out, so that the list agrees with the count.
+                                String name = names.get(entry.getValue());
+                                human.put(entry.getKey(), name != null ? name : entry.getValue().toString());
                             }
                             for (String server : new TreeSet<>(serverToPlayers.keySet())) {
                                 TextComponent serverName = new TextComponent();
@@ -253,4 +259,52 @@ class RedisBungeeCommands {
             sender.sendMessage(textComponent);
         }
     }
+
+    public static class StatsCommand extends Command {
+        private final RedisBungee plugin;
+
+        StatsCommand(RedisBungee plugin) {
+            super("redisbungeestats", "redisbungee.command.stats", "rstats");
+            this.plugin = plugin;
+        }
+
+        @Override
+        public void execute(CommandSender sender, String[] strings) {
+            for (RedisBungeeConsumer.Shard shard : plugin.getConsumer().getShards()) {
+                TextComponent textComponent = new TextComponent();
+                textComponent.setText("Consumer shard #" + shard.getId() + ": " + shard.getQueueDepth() + " queued, "
+                        + shard.getLag(TimeUnit.MILLISECONDS) + "ms lag, " + shard.getWritten() + " written");
+                textComponent.setColor(ChatColor.YELLOW);
+                sender.sendMessage(textComponent);
+            }
+            for (PubSubDispatcher.Worker worker : plugin.getDispatcher().getWorkers()) {
+                TextComponent textComponent = new TextComponent();
+                textComponent.setText("PubSub worker #" + worker.getId() + ": " + worker.getQueueDepth() + " queued, "
+                        + worker.getLatency(TimeUnit.MILLISECONDS) + "ms latency, " + worker.getDispatched() + " dispatched, "
+                        + worker.getDropped() + " dropped");
+                textComponent.setColor(ChatColor.YELLOW);
+                sender.sendMessage(textComponent);
+            }
+            AsyncExecutor executor = plugin.getAsyncExecutor();
+            TextComponent asyncComponent = new TextComponent();
+            asyncComponent.setText("Async API: " + executor.getActiveCount() + " active, " + executor.getQueue().size()
+                    + " queued, " + executor.getCompletedTaskCount() + " completed, " + executor.getRejectedCount()
+                    + " rejected, " + executor.getAverageTaskTime(TimeUnit.MILLISECONDS) + "ms average; "
+                    + plugin.getBatcher().getRequestCount() + " reads in " + plugin.getBatcher().getBatchCount() + " batches; "
+                    + plugin.getRpcManager().getPendingCount() + " requests awaiting replies");
+            asyncComponent.setColor(ChatColor.YELLOW);
+            sender.sendMessage(asyncComponent);
+            UUIDTranslator translator = plugin.getUuidTranslator();
+            sendCacheStats(sender, "Name cache", translator.getNameCacheSize(), translator.getNameCacheStats());
+            sendCacheStats(sender, "UUID cache", translator.getUuidCacheSize(), translator.getUuidCacheStats());
+        }
+
+        private static void sendCacheStats(CommandSender sender, String name, long size, CacheStats stats) {
+            TextComponent textComponent = new TextComponent();
+            textComponent.setText(name + ": " + size + " entries, " + stats.hitCount() + " hits, " + stats.missCount()
+                    + " misses, " + stats.evictionCount() + " evictions");
+            textComponent.setColor(ChatColor.YELLOW);
+            sender.sendMessage(textComponent);
+        }
+    }
 }
@@ -6,74 +6,574 @@
  */
 package com.imaginarycode.minecraft.redisbungee;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.ConsumerEvent;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerChangedServerConsumerEvent;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedInConsumerEvent;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedOffConsumerEvent;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
-@RequiredArgsConstructor
-public class RedisBungeeConsumer implements Runnable {
+public class RedisBungeeConsumer {
+    // How long an idle worker waits for an event before it looks at its spill file again.
+    private static final long IDLE_POLL_MILLIS = 250;
+    // Bounds for how long a worker waits between attempts to get a connection back.
+    private static final long MIN_RECONNECT_MILLIS = 100;
+    private static final long MAX_RECONNECT_MILLIS = 5000;
     private final RedisBungee plugin;
-    private final BlockingQueue<ConsumerEvent> consumerQueue = new LinkedBlockingQueue<>();
-    private boolean stopped = false;
+    private final Shard[] shards;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final CountDownLatch finished;
+    private volatile boolean stopped = false;
 
-    @Override
-    public void run() {
-        Jedis jedis = plugin.getPool().getResource();
+    /**
+     * What to do with an event when its shard's queue is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * Wait up to {@code consumer-block-timeout-ms} for room, then drop the event.
+         */
+        BLOCK,
+        /**
+         * Hold the event in a per-player overflow area where superseded events are collapsed.
+         */
+        COALESCE,
+        /**
+         * Append the event to a file in the plugin folder and replay it once the queue has drained.
+         */
+        SPILL
+    }
+
+    public RedisBungeeConsumer(RedisBungee plugin) {
+        this.plugin = plugin;
+        this.maxBatchSize = Math.max(1, RedisBungee.getConfiguration().getInt("consumer-batch-size", 500));
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, RedisBungee.getConfiguration().getInt("consumer-linger-ms", 5)));
+        this.blockTimeoutMillis = Math.max(0, RedisBungee.getConfiguration().getInt("consumer-block-timeout-ms", 250));
+        OverflowPolicy policy;
         try {
-            while (!stopped) {
-                ConsumerEvent event;
-                try {
-                    event = consumerQueue.take();
-                } catch (InterruptedException e) {
-                    continue;
-                }
-                handle(event, jedis);
+            policy = OverflowPolicy.valueOf(RedisBungee.getConfiguration().getString("consumer-overflow-policy", "COALESCE").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown consumer-overflow-policy, using COALESCE.");
+            policy = OverflowPolicy.COALESCE;
+        }
+        this.overflowPolicy = policy;
+        int capacity = Math.max(1, RedisBungee.getConfiguration().getInt("consumer-queue-capacity", 10000));
+        this.shards = new Shard[Math.max(1, RedisBungee.getConfiguration().getInt("consumer-workers", 2))];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard(i, capacity);
+        this.finished = new CountDownLatch(shards.length);
+    }
+
+    /**
+     * Start one worker per shard. Each worker holds its own Redis connection.
+     */
+    public void start() {
+        for (Shard shard : shards)
+            plugin.getProxy().getScheduler().runAsync(plugin, shard);
+    }
+
+    List<Shard> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Collapse superseded events for the same player. Consecutive server switches become one switch, and a login that
+     * is followed by a logout inside the same batch only records the player's name and last online time.
+     */
+    private static void coalesce(Deque<Object> events, ConsumerEvent event) {
+        if (event instanceof PlayerChangedServerConsumerEvent && events.peekLast() instanceof PlayerChangedServerConsumerEvent) {
+            PlayerChangedServerConsumerEvent last = (PlayerChangedServerConsumerEvent) events.pollLast();
+            events.addLast(new PlayerChangedServerConsumerEvent(event.getUuid(), last.getPreviousServer(),
+                    ((PlayerChangedServerConsumerEvent) event).getNewServer()));
+        } else if (event instanceof PlayerLoggedOffConsumerEvent) {
+            PlayerLoggedOffConsumerEvent logoff = (PlayerLoggedOffConsumerEvent) event;
+            if (events.peekLast() instanceof PlayerChangedServerConsumerEvent) {
+                // The switch is never written, so the player is still on the server they came from.
+                PlayerChangedServerConsumerEvent last = (PlayerChangedServerConsumerEvent) events.pollLast();
+                logoff = new PlayerLoggedOffConsumerEvent(event.getUuid(), last.getPreviousServer());
+            }
+            if (events.peekLast() instanceof PlayerLoggedInConsumerEvent) {
+                events.addLast(new TransientLogin((PlayerLoggedInConsumerEvent) events.pollLast()));
+            } else {
+                events.addLast(logoff);
             }
-            for (ConsumerEvent event : consumerQueue)
-                handle(event, jedis);
-            consumerQueue.clear();
-        } finally {
-            plugin.getPool().returnResource(jedis);
+        } else {
+            events.addLast(event);
         }
     }
 
-    private void handle(ConsumerEvent event, Jedis jedis) {
+    static Map<UUID, Deque<Object>> coalesce(List<ConsumerEvent> batch) {
+        Map<UUID, Deque<Object>> byPlayer = new LinkedHashMap<>();
+        for (ConsumerEvent event : batch) {
+            Deque<Object> events = byPlayer.get(event.getUuid());
+            if (events == null) {
+                events = new ArrayDeque<>();
+                byPlayer.put(event.getUuid(), events);
+            }
+            coalesce(events, event);
+        }
+        return byPlayer;
+    }
+
+    /**
+     * Queue the writes for one transition. Each transition is a single script call, so the usersOnline set, the
+     * player hash and the backend index are always updated together.
+     */
+    private void handle(Object event, Pipeline pipeline, boolean eval, List<String> deltas) {
         if (event instanceof PlayerLoggedInConsumerEvent) {
             PlayerLoggedInConsumerEvent event1 = (PlayerLoggedInConsumerEvent) event;
-            Pipeline pipeline = jedis.pipelined();
-            pipeline.sadd("server:" + RedisBungee.getApi().getServerId() + ":usersOnline", event1.getPlayer().getUniqueId().toString());
-            pipeline.hset("player:" + event1.getPlayer().getUniqueId().toString(), "online", "0");
-            pipeline.hset("player:" + event1.getPlayer().getUniqueId().toString(), "ip", event1.getPlayer().getAddress().getAddress().getHostAddress());
-            pipeline.hset("player:" + event1.getPlayer().getUniqueId().toString(), "name", event1.getPlayer().getName());
-            pipeline.hset("uuids", event1.getPlayer().getName().toLowerCase(), event1.getPlayer().getUniqueId().toString());
-            pipeline.sync();
+            login(event1, pipeline, eval);
+            deltas.add(NetworkState.join(plugin.getServerId(), event1.getUuid()));
         } else if (event instanceof PlayerLoggedOffConsumerEvent) {
             PlayerLoggedOffConsumerEvent event1 = (PlayerLoggedOffConsumerEvent) event;
-            Pipeline pipeline = jedis.pipelined();
-            jedis.hset("player:" + event1.getPlayer().getUniqueId().toString(), "online", String.valueOf(System.currentTimeMillis()));
-            RedisUtil.cleanUpPlayer(event1.getPlayer().getUniqueId().toString(), pipeline);
-            pipeline.sync();
+            RedisUtil.queueLogout(pipeline, eval, plugin.getServerId(), event1.getUuid().toString(), event1.getLastServer());
+            deltas.add(NetworkState.quit(plugin.getServerId(), event1.getUuid()));
         } else if (event instanceof PlayerChangedServerConsumerEvent) {
             PlayerChangedServerConsumerEvent event1 = (PlayerChangedServerConsumerEvent) event;
-            // No use in pipelining this
-            jedis.hset("player:" + event1.getPlayer().getUniqueId().toString(), "server", event1.getNewServer().getName());
+            String uuid = event1.getUuid().toString();
+            String previous = event1.getPreviousServer();
+            if (previous == null)
+                RedisUtil.SWITCH_SCRIPT.queue(pipeline, eval, 2, RedisKeys.player(uuid), RedisKeys.backend(event1.getNewServer()),
+                        uuid, event1.getNewServer());
+            else
+                RedisUtil.SWITCH_SCRIPT.queue(pipeline, eval, 3, RedisKeys.player(uuid), RedisKeys.backend(event1.getNewServer()),
+                        RedisKeys.backend(previous), uuid, event1.getNewServer(), previous);
+            deltas.add(NetworkState.serverChange(plugin.getServerId(), event1.getUuid(), event1.getNewServer()));
+        } else if (event instanceof TransientLogin) {
+            // Nobody else saw this player, so there are no deltas to publish.
+            PlayerLoggedInConsumerEvent event1 = ((TransientLogin) event).getLogin();
+            login(event1, pipeline, eval);
+            RedisUtil.queueLogout(pipeline, eval, plugin.getServerId(), event1.getUuid().toString(), null);
         }
     }
 
+    private void login(PlayerLoggedInConsumerEvent event, Pipeline pipeline, boolean eval) {
+        String uuid = event.getUuid().toString();
+        RedisUtil.LOGIN_SCRIPT.queue(pipeline, eval, 4, plugin.getKeys().getUsersOnline(), RedisKeys.player(uuid), RedisKeys.UUIDS,
+                RedisKeys.ONLINE, uuid, event.getName(), event.getName().toLowerCase(), event.getIp(), plugin.getServerId());
+    }
+
     public void queue(ConsumerEvent event) {
-        if (!stopped)
-            consumerQueue.add(event);
+        // Every event for a player lands on the same shard, which keeps them in order.
+        shards[(event.getUuid().hashCode() & Integer.MAX_VALUE) % shards.length].queue(event);
     }
 
+    /**
+     * Stop accepting events and wait (up to {@code consumer-shutdown-timeout} seconds) for every shard to write out
+     * what it still holds.
+     */
     public void stop() {
         stopped = true;
-        while (!consumerQueue.isEmpty()) ;
+        for (Shard shard : shards)
+            shard.wake();
+        boolean done;
+        try {
+            done = finished.await(Math.max(0, RedisBungee.getConfiguration().getInt("consumer-shutdown-timeout", 10)), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+        long dropped = 0;
+        long pending = 0;
+        for (Shard shard : shards) {
+            dropped += shard.getDropped();
+            pending += shard.getQueueDepth();
+        }
+        if (!done)
+            plugin.getLogger().severe("Timed out waiting for the consumer; " + pending + " events were not written.");
+        if (dropped > 0)
+            plugin.getLogger().warning("The consumer dropped " + dropped + " events while running.");
+    }
+
+    private static String encode(ConsumerEvent event) {
+        if (event instanceof PlayerLoggedInConsumerEvent) {
+            PlayerLoggedInConsumerEvent event1 = (PlayerLoggedInConsumerEvent) event;
+            return "L\t" + event1.getUuid() + "\t" + event1.getName() + "\t" + event1.getIp();
+        } else if (event instanceof PlayerLoggedOffConsumerEvent) {
+            PlayerLoggedOffConsumerEvent event1 = (PlayerLoggedOffConsumerEvent) event;
+            return "O\t" + event1.getUuid() + "\t" + nullToEmpty(event1.getLastServer());
+        } else {
+            PlayerChangedServerConsumerEvent event1 = (PlayerChangedServerConsumerEvent) event;
+            return "S\t" + event1.getUuid() + "\t" + nullToEmpty(event1.getPreviousServer()) + "\t" + event1.getNewServer();
+        }
+    }
+
+    private static ConsumerEvent decode(String line) {
+        String[] parts = line.split("\t", -1);
+        try {
+            switch (parts[0]) {
+                case "L":
+                    return new PlayerLoggedInConsumerEvent(UUID.fromString(parts[1]), parts[2], parts[3]);
+                case "O":
+                    return new PlayerLoggedOffConsumerEvent(UUID.fromString(parts[1]), emptyToNull(parts[2]));
+                case "S":
+                    return new PlayerChangedServerConsumerEvent(UUID.fromString(parts[1]), emptyToNull(parts[2]), parts[3]);
+                default:
+                    return null;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    /**
+     * A single consumer worker, with its own bounded queue and Redis connection.
+     */
+    class Shard implements Runnable {
+        private final int id;
+        private final BlockingQueue<QueuedEvent> queue;
+        // Only used by the COALESCE policy. Guarded by itself.
+        private final Map<UUID, Deque<Object>> overflow = new LinkedHashMap<>();
+        // Only used by the SPILL policy. Guarded by spillLock.
+        private final Object spillLock = new Object();
+        private final File spillFile;
+        private Writer spillWriter;
+        private volatile boolean spilling = false;
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long lagNanos = 0;
+        private volatile Thread thread;
+
+        private Shard(int id, int capacity) {
+            this.id = id;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.spillFile = new File(plugin.getDataFolder(), "consumer-spill-" + id + ".log");
+            // Anything left over from an unclean shutdown is replayed first.
+            this.spilling = spillFile.exists();
+        }
+
+        int getId() {
+            return id;
+        }
+
+        int getQueueDepth() {
+            int depth = queue.size();
+            synchronized (overflow) {
+                for (Deque<Object> events : overflow.values())
+                    depth += events.size();
+            }
+            return depth;
+        }
+
+        /**
+         * How long the oldest event of the most recent batch waited before it was written.
+         */
+        long getLag(TimeUnit unit) {
+            return unit.convert(lagNanos, TimeUnit.NANOSECONDS);
+        }
+
+        long getWritten() {
+            return written.get();
+        }
+
+        long getDropped() {
+            return dropped.get();
+        }
+
+        private void queue(ConsumerEvent event) {
+            if (stopped) {
+                dropped.incrementAndGet();
+                return;
+            }
+            QueuedEvent queued = new QueuedEvent(event, System.nanoTime());
+            switch (overflowPolicy) {
+                case BLOCK:
+                    try {
+                        if (!queue.offer(queued, blockTimeoutMillis, TimeUnit.MILLISECONDS))
+                            dropped.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case COALESCE:
+                    synchronized (overflow) {
+                        Deque<Object> events = overflow.get(event.getUuid());
+                        // Once a player has overflowed, everything else for them has to follow to stay in order.
+                        if (events == null && queue.offer(queued))
+                            return;
+                        if (events == null) {
+                            events = new ArrayDeque<>();
+                            overflow.put(event.getUuid(), events);
+                        }
+                        coalesce(events, event);
+                    }
+                    break;
+                case SPILL:
+                    if (!spilling && queue.offer(queued))
+                        return;
+                    spill(event);
+                    break;
+            }
+        }
+
+        private void spill(ConsumerEvent event) {
+            synchronized (spillLock) {
+                try {
+                    if (spillWriter == null)
+                        spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), Charsets.UTF_8));
+                    spillWriter.write(encode(event));
+                    spillWriter.write('\n');
+                    spillWriter.flush();
+                    spilling = true;
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Unable to spill event for " + event.getUuid(), e);
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        private void wake() {
+            Thread t = thread;
+            if (t != null)
+                t.interrupt();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            Jedis jedis = null;
+            List<ConsumerEvent> batch = new ArrayList<>();
+            try {
+                jedis = reconnect();
+                // Anything left over from an unclean shutdown goes out before the events that were spilled behind it.
+                if (spilling)
+                    jedis = replaySpill(jedis);
+                while (!stopped) {
+                    long oldest = 0;
+                    try {
+                        // Never block indefinitely: while we are spilling, new events go to the file and not the queue.
+                        QueuedEvent first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            oldest = first.getQueuedAt();
+                            batch.add(first.getEvent());
+                            fill(batch);
+                        }
+                    } catch (InterruptedException ignored) {
+                    }
+                    drainOverflow(batch);
+                    if (!batch.isEmpty()) {
+                        jedis = flush(batch, jedis, oldest);
+                        batch.clear();
+                    }
+                    if (spilling && queue.isEmpty())
+                        jedis = replaySpill(jedis);
+                }
+                // Clear the interrupt that woke us up; we still have writing to do.
+                Thread.interrupted();
+                List<QueuedEvent> rest = new ArrayList<>();
+                queue.drainTo(rest);
+                for (QueuedEvent queued : rest)
+                    batch.add(queued.getEvent());
+                drainOverflow(batch);
+                if (!batch.isEmpty())
+                    jedis = flush(batch, jedis, 0);
+                if (spilling)
+                    jedis = replaySpill(jedis);
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Consumer shard #" + id + " died", e);
+            } finally {
+                if (jedis != null)
+                    plugin.getPool().returnResource(jedis);
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Drain whatever else is queued into the batch, lingering briefly for stragglers if the batch is not yet full.
+         */
+        private void fill(List<ConsumerEvent> batch) throws InterruptedException {
+            List<QueuedEvent> drained = new ArrayList<>();
+            queue.drainTo(drained, maxBatchSize - batch.size());
+            for (QueuedEvent queued : drained)
+                batch.add(queued.getEvent());
+            long deadline = System.nanoTime() + lingerNanos;
+            while (batch.size() < maxBatchSize) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    break;
+                QueuedEvent event = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (event == null)
+                    break;
+                batch.add(event.getEvent());
+            }
+        }
+
+        private void drainOverflow(List<ConsumerEvent> batch) {
+            synchronized (overflow) {
+                for (Deque<Object> events : overflow.values()) {
+                    for (Object event : events) {
+                        if (event instanceof TransientLogin) {
+                            // Split it back up; the batch will coalesce it again.
+                            PlayerLoggedInConsumerEvent login = ((TransientLogin) event).getLogin();
+                            batch.add(login);
+                            batch.add(new PlayerLoggedOffConsumerEvent(login.getUuid(), null));
+                        } else {
+                            batch.add((ConsumerEvent) event);
+                        }
+                    }
+                }
+                overflow.clear();
+            }
+        }
+
+        /**
+         * Write spilled events back out. New events keep being spilled until the file is empty, so ordering holds.
+         */
+        private Jedis replaySpill(Jedis jedis) {
+            File replay = new File(plugin.getDataFolder(), "consumer-spill-" + id + ".replay");
+            synchronized (spillLock) {
+                try {
+                    if (spillWriter != null) {
+                        spillWriter.close();
+                        spillWriter = null;
+                    }
+                } catch (IOException ignored) {
+                }
+                if (!spillFile.exists() || spillFile.length() == 0) {
+                    spillFile.delete();
+                    spilling = false;
+                    return jedis;
+                }
+                if (!spillFile.renameTo(replay)) {
+                    plugin.getLogger().severe("Unable to rotate " + spillFile + " for replay.");
+                    return jedis;
+                }
+            }
+
+            List<ConsumerEvent> batch = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(replay), Charsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ConsumerEvent event = decode(line);
+                    if (event != null)
+                        batch.add(event);
+                    if (batch.size() >= maxBatchSize) {
+                        jedis = flush(batch, jedis, 0);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty())
+                    jedis = flush(batch, jedis, 0);
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to replay " + replay, e);
+            }
+            replay.delete();
+            return jedis;
+        }
+
+        /**
+         * @return false if any script was unknown to Redis and the batch has to be resent with EVAL
+         */
+        private boolean write(Map<UUID, Deque<Object>> coalesced, Jedis jedis, boolean eval) {
+            List<String> deltas = new ArrayList<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (Deque<Object> events : coalesced.values())
+                for (Object event : events)
+                    handle(event, pipeline, eval, deltas);
+            // Deltas only go out on the first attempt, so a resend never publishes them twice.
+            if (!eval && !deltas.isEmpty())
+                pipeline.publish(NetworkState.DELTA_CHANNEL, Joiner.on('\n').join(deltas));
+            // Sync even when resending, or the batch would never actually reach Redis.
+            List<Object> responses = pipeline.syncAndReturnAll();
+            RedisUtil.removeFromStaleBackends(jedis, responses);
+            return eval || !RedisScript.anyNoScript(responses);
+        }
+
+        /**
+         * @param jedis our connection, or null if we lost it and could not get another
+         * @return the connection to use from now on, or null if there is none yet
+         */
+        private Jedis flush(List<ConsumerEvent> batch, Jedis jedis, long oldest) {
+            if (jedis == null)
+                jedis = reconnect();
+            if (jedis == null) {
+                dropped.addAndGet(batch.size());
+                return null;
+            }
+            try {
+                Map<UUID, Deque<Object>> coalesced = coalesce(batch);
+                if (!write(coalesced, jedis, false)) {
+                    // Redis doesn't have our scripts cached (it was probably restarted). Every script is idempotent,
+                    // so resending the whole batch with EVAL is safe.
+                    write(coalesced, jedis, true);
+                }
+                written.addAndGet(batch.size());
+                if (oldest != 0)
+                    lagNanos = System.nanoTime() - oldest;
+            } catch (JedisConnectionException e) {
+                // Redis server has disappeared!
+                plugin.getLogger().log(Level.SEVERE, "Unable to write " + batch.size() + " events on consumer shard #" + id + " - did your Redis server go away?", e);
+                dropped.addAndGet(batch.size());
+                plugin.getPool().returnBrokenResource(jedis);
+                return reconnect();
+            }
+            return jedis;
+        }
+
+        /**
+         * Get a new connection, backing off between attempts until Redis is back.
+         *
+         * @return the connection, or null if we were stopped before one could be had
+         */
+        private Jedis reconnect() {
+            long backoff = MIN_RECONNECT_MILLIS;
+            while (true) {
+                try {
+                    return plugin.getPool().getResource();
+                } catch (JedisConnectionException e) {
+                    if (stopped)
+                        return null;
+                    plugin.getLogger().warning("Consumer shard #" + id + " is unable to reconnect to Redis, retrying in "
+                            + backoff + "ms.");
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    // stop() wakes us up; the loop notices if that is why.
+                }
+                backoff = Math.min(backoff * 2, MAX_RECONNECT_MILLIS);
+            }
+        }
+    }
+
+    @RequiredArgsConstructor
+    @Getter
+    private static class QueuedEvent {
+        private final ConsumerEvent event;
+        private final long queuedAt;
+    }
+
+    /**
+     * A login and logout that were coalesced within a single batch.
+     */
+    @RequiredArgsConstructor
+    @Getter
+    static class TransientLogin {
+        private final PlayerLoggedInConsumerEvent login;
     }
 }
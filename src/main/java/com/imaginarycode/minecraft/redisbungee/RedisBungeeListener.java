@@ -7,56 +7,143 @@
 package com.imaginarycode.minecraft.redisbungee;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerChangedServerConsumerEvent;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedInConsumerEvent;
 import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedOffConsumerEvent;
-import com.imaginarycode.minecraft.redisbungee.events.PubSubMessageEvent;
 import lombok.AllArgsConstructor;
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.ServerPing;
-import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.connection.Server;
 import net.md_5.bungee.api.event.*;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 @AllArgsConstructor
 public class RedisBungeeListener implements Listener {
+    // How long a claimed player has to reach PostLoginEvent before we assume their login was abandoned.
+    private static final long CLAIM_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(30);
     private final RedisBungee plugin;
+    private final Map<UUID, Long> pendingClaims = new ConcurrentHashMap<>();
 
     @EventHandler
-    public void onPlayerConnect(final PostLoginEvent event) {
-        if (plugin.getPool() != null) {
-            Jedis rsc = plugin.getPool().getResource();
-            try {
-                for (String server : plugin.getServerIds()) {
-                    if (rsc.sismember("server:" + server + ":usersOnline", event.getPlayer().getUniqueId().toString())) {
-                        event.getPlayer().disconnect(new ComponentBuilder("You are already logged on to this server.").color(
-                                ChatColor.RED).create());
+    public void onLogin(final LoginEvent event) {
+        if (plugin.getPool() == null)
+            return;
+        // The claim needs Redis, so do it off the I/O thread and let BungeeCord wait for us.
+        event.registerIntent(plugin);
+        plugin.getProxy().getScheduler().runAsync(plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Someone else has already turned the player away, so there is nothing to claim.
+                    if (event.isCancelled())
                         return;
+                    if (!claim(event.getConnection().getUniqueId())) {
+                        event.setCancelled(true);
+                        event.setCancelReason(ChatColor.RED + "You are already logged on to this server.");
                     }
+                } finally {
+                    event.completeIntent(plugin);
                 }
-            } finally {
-                plugin.getPool().returnResource(rsc);
             }
+        });
+    }
+
+    /**
+     * Claim the player for this proxy in the global {@code online} hash. Another proxy's claim is only taken over once
+     * its lease has expired, and the check and the takeover happen in one script so that two logins cannot both win.
+     *
+     * @return false if another live proxy already holds the player
+     */
+    private boolean claim(UUID uuid) {
+        String member = uuid.toString();
+        Jedis rsc = plugin.getPool().getResource();
+        try {
+            long result;
+            do {
+                String holder = rsc.hget(RedisKeys.ONLINE, member);
+                result = (Long) RedisUtil.CLAIM_SCRIPT.eval(rsc,
+                        ImmutableList.of(RedisKeys.ONLINE, RedisKeys.lease(holder == null ? plugin.getServerId() : holder)),
+                        ImmutableList.of(member, plugin.getServerId(), holder == null ? "" : holder));
+            } while (result == -1);
+            if (result == 0)
+                return false;
+            pendingClaims.put(uuid, System.currentTimeMillis());
+            return true;
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            plugin.getLogger().log(Level.SEVERE, "Unable to claim " + uuid + " - did your Redis server go away?", e);
+            plugin.getPool().returnBrokenResource(rsc);
+            return true;
+        } finally {
+            plugin.getPool().returnResource(rsc);
+        }
+    }
+
+    /**
+     * Release the claims of players who were cancelled by another plugin after we claimed them, or who disconnected
+     * before they were logged in. Neither reaches {@link PostLoginEvent} or {@link PlayerDisconnectEvent}.
+     */
+    void releaseAbandonedClaims() {
+        long cutoff = System.currentTimeMillis() - CLAIM_GRACE_MILLIS;
+        List<String> abandoned = new ArrayList<>();
+        for (Iterator<Map.Entry<UUID, Long>> it = pendingClaims.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<UUID, Long> entry = it.next();
+            if (entry.getValue() > cutoff)
+                continue;
+            it.remove();
+            if (plugin.getProxy().getPlayer(entry.getKey()) == null)
+                abandoned.add(entry.getKey().toString());
+        }
+        if (abandoned.isEmpty())
+            return;
+        Jedis rsc = plugin.getPool().getResource();
+        try {
+            for (String member : abandoned)
+                RedisUtil.UNCLAIM_SCRIPT.eval(rsc, ImmutableList.of(RedisKeys.ONLINE),
+                        ImmutableList.of(member, plugin.getServerId()));
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            plugin.getLogger().log(Level.SEVERE, "Unable to release abandoned claims - did your Redis server go away?", e);
+            plugin.getPool().returnBrokenResource(rsc);
+        } finally {
+            plugin.getPool().returnResource(rsc);
         }
-        plugin.getConsumer().queue(new PlayerLoggedInConsumerEvent(event.getPlayer()));
+    }
+
+    @EventHandler
+    public void onPlayerConnect(final PostLoginEvent event) {
+        pendingClaims.remove(event.getPlayer().getUniqueId());
+        plugin.getNetworkState().playerJoined(plugin.getServerId(), event.getPlayer().getUniqueId());
+        plugin.getConsumer().queue(new PlayerLoggedInConsumerEvent(event.getPlayer().getUniqueId(), event.getPlayer().getName(),
+                event.getPlayer().getAddress().getAddress().getHostAddress()));
     }
 
     @EventHandler
     public void onPlayerDisconnect(final PlayerDisconnectEvent event) {
-        plugin.getConsumer().queue(new PlayerLoggedOffConsumerEvent(event.getPlayer()));
+        plugin.getNetworkState().playerQuit(plugin.getServerId(), event.getPlayer().getUniqueId());
+        Server server = event.getPlayer().getServer();
+        plugin.getConsumer().queue(new PlayerLoggedOffConsumerEvent(event.getPlayer().getUniqueId(),
+                server == null ? null : server.getInfo().getName()));
     }
 
     @EventHandler
     public void onServerChange(final ServerConnectedEvent event) {
-        plugin.getConsumer().queue(new PlayerChangedServerConsumerEvent(event.getPlayer(), event.getServer().getInfo()));
+        plugin.getNetworkState().playerChangedServer(plugin.getServerId(), event.getPlayer().getUniqueId(), event.getServer().getInfo().getName());
+        Server previous = event.getPlayer().getServer();
+        plugin.getConsumer().queue(new PlayerChangedServerConsumerEvent(event.getPlayer().getUniqueId(),
+                previous == null ? null : previous.getInfo().getName(), event.getServer().getInfo().getName()));
     }
 
     @EventHandler
@@ -97,9 +184,7 @@ public class RedisBungeeListener implements Listener {
                                 } catch (IllegalArgumentException ignored) {
                                 }
                             }
-                            Set<String> players = new HashSet<>();
-                            for (UUID uuid : original)
-                                players.add(plugin.getUuidTranslator().getNameFromUuid(uuid, false));
+                            Set<String> players = new HashSet<>(plugin.getUuidTranslator().getNamesFromUuids(original, false).values());
                             out.writeUTF(Joiner.on(',').join(players));
                             break;
                         case "PlayerCount":
@@ -111,12 +196,12 @@ public class RedisBungeeListener implements Listener {
                             } else {
                                 out.writeUTF(type);
                                 try {
-                                    out.writeInt(plugin.getPlayersOnServer(type).size());
+                                    out.writeInt(plugin.getPlayerCountOnServer(type));
                                 } catch (IllegalArgumentException e) {
                                     out.writeInt(0);
                                 }
                             }
-                            out.writeInt(plugin.getCurrentCount());
+                            out.writeInt(plugin.getCount());
                             break;
                         case "LastOnline":
                             String user = in.readUTF();
@@ -133,15 +218,4 @@ public class RedisBungeeListener implements Listener {
             });
         }
     }
-
-    @EventHandler
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (event.getChannel().equals("redisbungee-allservers") || event.getChannel().equals("redisbungee-" + RedisBungee.getApi().getServerId())) {
-            String message = event.getMessage();
-            if (message.startsWith("/"))
-                message = message.substring(1);
-            plugin.getLogger().info("Invoking command via PubSub: /" + message);
-            plugin.getProxy().getPluginManager().dispatchCommand(RedisBungeeCommandSender.instance, message);
-        }
-    }
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import redis.clients.util.SafeEncoder;
+
+import java.util.UUID;
+
+/**
+ * The names of the keys RedisBungee keeps in Redis. Every key name is built here and nowhere else, apart from the
+ * bundled Lua scripts, which are handed theirs by the caller.
+ * <p>
+ * An instance holds this proxy's own keys, built once. Per-player keys for binary commands are written straight from
+ * the UUID's bits into the byte array Jedis sends, skipping the intermediate strings. Each call returns a fresh array,
+ * since a pipeline holds on to its arguments until it is synced.
+ */
+@Getter(AccessLevel.PACKAGE)
+public final class RedisKeys {
+    /**
+     * A hash of player UUID to the proxy that currently holds them.
+     */
+    static final String ONLINE = "online";
+    /**
+     * A set of every proxy that has registered a lease and not yet been reclaimed.
+     */
+    static final String PROXIES = "proxies";
+    /**
+     * A hash of proxy to the number of players it last reported.
+     */
+    static final String PLAYER_COUNTS = "playerCounts";
+    /**
+     * A hash of lowercase player name to UUID.
+     */
+    public static final String UUIDS = "uuids";
+    private static final String LEASE_PREFIX = "proxy:";
+    private static final String LEASE_SUFFIX = ":lease";
+    static final byte[] ONLINE_FIELD = SafeEncoder.encode("online");
+    static final byte[] IP_FIELD = SafeEncoder.encode("ip");
+    private static final String PLAYER = "player:";
+    private static final byte[] PLAYER_PREFIX = SafeEncoder.encode(PLAYER);
+    private static final byte[] HEX_DIGITS = SafeEncoder.encode("0123456789abcdef");
+    private static final int UUID_LENGTH = 36;
+
+    private final String serverId;
+    private final String usersOnline;
+    private final String lease;
+    private final String reconcileScratch;
+
+    RedisKeys(String serverId) {
+        this.serverId = serverId;
+        this.usersOnline = usersOnline(serverId);
+        this.lease = lease(serverId);
+        this.reconcileScratch = reconcileScratch(serverId);
+    }
+
+    static String usersOnline(String proxy) {
+        return "server:" + proxy + ":usersOnline";
+    }
+
+    static String lease(String proxy) {
+        return LEASE_PREFIX + proxy + LEASE_SUFFIX;
+    }
+
+    /**
+     * A temporary set a proxy builds while reconciling its usersOnline set with its connected players.
+     */
+    static String reconcileScratch(String proxy) {
+        return "reconcile:" + proxy;
+    }
+
+    /**
+     * Held by whichever proxy is reclaiming the players of a proxy whose lease has expired.
+     */
+    static String reclaim(String proxy) {
+        return "reclaim:" + proxy;
+    }
+
+    /**
+     * The inverse of {@link #lease(String)}, or null if the key is not a lease.
+     */
+    static String proxyFromLease(String key) {
+        if (key.startsWith(LEASE_PREFIX) && key.endsWith(LEASE_SUFFIX)
+                && key.length() > LEASE_PREFIX.length() + LEASE_SUFFIX.length())
+            return key.substring(LEASE_PREFIX.length(), key.length() - LEASE_SUFFIX.length());
+        return null;
+    }
+
+    /**
+     * The set of players on a backend server, across every proxy.
+     */
+    static String backend(String server) {
+        return "backend:" + server + ":players";
+    }
+
+    public static String player(UUID uuid) {
+        return PLAYER + uuid;
+    }
+
+    static String player(String uuid) {
+        return PLAYER + uuid;
+    }
+
+    /**
+     * The bytes of {@link #player(UUID)}.
+     */
+    static byte[] playerBytes(UUID uuid) {
+        byte[] key = new byte[PLAYER_PREFIX.length + UUID_LENGTH];
+        System.arraycopy(PLAYER_PREFIX, 0, key, 0, PLAYER_PREFIX.length);
+        writeUuid(uuid, key, PLAYER_PREFIX.length);
+        return key;
+    }
+
+    /**
+     * The bytes of {@link UUID#toString()}.
+     */
+    static byte[] uuidBytes(UUID uuid) {
+        byte[] bytes = new byte[UUID_LENGTH];
+        writeUuid(uuid, bytes, 0);
+        return bytes;
+    }
+
+    private static void writeUuid(UUID uuid, byte[] out, int offset) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        offset = writeHex(msb >>> 32, 8, out, offset);
+        out[offset++] = '-';
+        offset = writeHex(msb >>> 16, 4, out, offset);
+        out[offset++] = '-';
+        offset = writeHex(msb, 4, out, offset);
+        out[offset++] = '-';
+        offset = writeHex(lsb >>> 48, 4, out, offset);
+        out[offset++] = '-';
+        writeHex(lsb, 12, out, offset);
+    }
+
+    private static int writeHex(long value, int digits, byte[] out, int offset) {
+        for (int i = digits - 1; i >= 0; i--) {
+            out[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        return offset + digits;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A Lua script bundled with RedisBungee.
+ * <p>
+ * Scripts are invoked by SHA1 with {@code EVALSHA}. Should Redis not know the script yet, we fall back to {@code EVAL},
+ * which also caches it for next time.
+ */
+class RedisScript {
+    private final String source;
+    private final String sha1;
+
+    private RedisScript(String source) {
+        this.source = source;
+        this.sha1 = Hashing.sha1().hashBytes(source.getBytes(Charsets.UTF_8)).toString();
+    }
+
+    static RedisScript load(String name) {
+        try (InputStream in = RedisScript.class.getResourceAsStream("/lua/" + name + ".lua")) {
+            if (in == null)
+                throw new IllegalStateException("Missing bundled script " + name);
+            return new RedisScript(new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to load bundled script " + name, e);
+        }
+    }
+
+    Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e))
+                throw e;
+            return jedis.eval(source, keys, args);
+        }
+    }
+
+    /**
+     * Queue this script on a pipeline. If {@code eval} is false, the caller must check the pipeline's responses with
+     * {@link #anyNoScript(List)} and resend with {@code eval} set should Redis not have the script cached.
+     */
+    void queue(Pipeline pipeline, boolean eval, List<String> keys, List<String> args) {
+        String[] params = new String[keys.size() + args.size()];
+        int i = 0;
+        for (String key : keys)
+            params[i++] = key;
+        for (String arg : args)
+            params[i++] = arg;
+        queue(pipeline, eval, keys.size(), params);
+    }
+
+    /**
+     * Queue this script on a pipeline, with the first {@code keyCount} parameters being keys. This spares the hot paths
+     * from building lists only to copy them into an array again.
+     *
+     * @see #queue(Pipeline, boolean, List, List)
+     */
+    void queue(Pipeline pipeline, boolean eval, int keyCount, String... params) {
+        if (eval)
+            pipeline.eval(source, keyCount, params);
+        else
+            pipeline.evalsha(sha1, keyCount, params);
+    }
+
+    static boolean anyNoScript(List<Object> responses) {
+        for (Object response : responses)
+            if (response instanceof JedisDataException && isNoScript((JedisDataException) response))
+                return true;
+        return false;
+    }
+
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+}
@@ -6,19 +6,119 @@
  */
 package com.imaginarycode.minecraft.redisbungee;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
 class RedisUtil {
-    public static void cleanUpPlayer(String player, Jedis rsc) {
-        rsc.srem("server:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server");
-        rsc.hdel("player:" + player, "ip");
+    /**
+     * Where Redis announces expired keys, once keyspace notifications are enabled. We only use database 0.
+     */
+    static final String EXPIRED_CHANNEL = "__keyevent@0__:expired";
+
+    static final RedisScript LOGIN_SCRIPT = RedisScript.load("login");
+    static final RedisScript LOGOUT_SCRIPT = RedisScript.load("logout");
+    static final RedisScript SWITCH_SCRIPT = RedisScript.load("switch");
+    static final RedisScript HEARTBEAT_SCRIPT = RedisScript.load("heartbeat");
+    static final RedisScript RECLAIM_SCRIPT = RedisScript.load("reclaim");
+    static final RedisScript CLAIM_SCRIPT = RedisScript.load("claim");
+    static final RedisScript UNCLAIM_SCRIPT = RedisScript.load("unclaim");
+    /**
+     * How long a proxy may take to reclaim another before someone else may take over.
+     */
+    static final long RECLAIM_CLAIM_MILLIS = 30000;
+
+    /**
+     * Queue the logout of a player from a proxy. {@code server} is the backend server we believe the player is on, or
+     * null if we don't know; the responses must be passed to {@link #removeFromStaleBackends(Jedis, List)} in case the
+     * player was really somewhere else.
+     */
+    static void queueLogout(Pipeline pipeline, boolean eval, String proxy, String player, String server) {
+        String now = String.valueOf(System.currentTimeMillis());
+        if (server == null)
+            LOGOUT_SCRIPT.queue(pipeline, eval, 3, RedisKeys.usersOnline(proxy), RedisKeys.player(player), RedisKeys.ONLINE,
+                    player, now, proxy);
+        else
+            LOGOUT_SCRIPT.queue(pipeline, eval, 4, RedisKeys.usersOnline(proxy), RedisKeys.player(player), RedisKeys.ONLINE,
+                    RedisKeys.backend(server), player, now, proxy, server);
+    }
+
+    static void cleanUpPlayers(String proxy, Collection<String> players, Jedis rsc) {
+        Pipeline pipeline = rsc.pipelined();
+        for (String member : players)
+            queueLogout(pipeline, false, proxy, member, null);
+        List<Object> responses = pipeline.syncAndReturnAll();
+        if (RedisScript.anyNoScript(responses)) {
+            pipeline = rsc.pipelined();
+            for (String member : players)
+                queueLogout(pipeline, true, proxy, member, null);
+            responses = pipeline.syncAndReturnAll();
+        }
+        removeFromStaleBackends(rsc, responses);
+    }
+
+    /**
+     * The logout and switch scripts may only touch the backend sets they were given as keys, so they report a player
+     * found on any other server as "uuid\tserver" and leave it to us to take them out of that server's set.
+     */
+    static void removeFromStaleBackends(Jedis rsc, List<Object> responses) {
+        Pipeline pipeline = null;
+        for (Object response : responses) {
+            if (!(response instanceof String))
+                continue;
+            String stale = (String) response;
+            int tab = stale.indexOf('\t');
+            if (tab == -1)
+                continue;
+            if (pipeline == null)
+                pipeline = rsc.pipelined();
+            pipeline.srem(RedisKeys.backend(stale.substring(tab + 1)), stale.substring(0, tab));
+        }
+        if (pipeline != null)
+            pipeline.sync();
+    }
+
+    /**
+     * Log out every player of a proxy whose lease has expired. Callers first claim the job for
+     * {@link #RECLAIM_CLAIM_MILLIS}, so only one of them does it at a time; the others, and callers who find the proxy
+     * alive or already reclaimed, get -1. Otherwise returns the number of players reclaimed.
+     */
+    @SuppressWarnings("unchecked")
+    static long reclaimProxy(String proxy, String reclaimer, Jedis rsc) {
+        String usersOnline = RedisKeys.usersOnline(proxy);
+        String claim = RedisKeys.reclaim(proxy);
+        List<String> players = (List<String>) RECLAIM_SCRIPT.eval(rsc,
+                ImmutableList.of(RedisKeys.lease(proxy), usersOnline, RedisKeys.PROXIES, RedisKeys.PLAYER_COUNTS, claim),
+                ImmutableList.of(proxy, reclaimer, String.valueOf(RECLAIM_CLAIM_MILLIS)));
+        if (players == null)
+            return -1;
+        cleanUpPlayers(proxy, players, rsc);
+        List<String> deltas = new ArrayList<>(players.size());
+        for (String player : players) {
+            try {
+                deltas.add(NetworkState.quit(proxy, UUID.fromString(player)));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        Pipeline pipeline = rsc.pipelined();
+        if (!deltas.isEmpty())
+            pipeline.publish(NetworkState.DELTA_CHANNEL, Joiner.on('\n').join(deltas));
+        // The set goes last, so that whoever takes over from a reclaimer that died first still finds it.
+        pipeline.del(usersOnline, claim);
+        pipeline.sync();
+        return players.size();
     }
 
-    public static void cleanUpPlayer(String player, Pipeline rsc) {
-        rsc.srem("server:" + RedisBungee.getApi().getServerId() + ":usersOnline", player);
-        rsc.hdel("player:" + player, "server");
-        rsc.hdel("player:" + player, "ip");
+    /**
+     * Convert the reply of the Redis {@code TIME} command to milliseconds.
+     */
+    static long toMillis(List<String> time) {
+        return Long.parseLong(time.get(0)) * 1000 + Long.parseLong(time.get(1)) / 1000;
     }
 }
@@ -0,0 +1,28 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import lombok.Getter;
+
+/**
+ * Thrown when another proxy could not answer a request, either because its {@link RequestHandler} failed or because it
+ * has no handler for the method.
+ *
+ * @since 0.3.3
+ */
+public class RemoteRequestException extends RuntimeException {
+    /**
+     * The ID of the proxy that failed to answer.
+     */
+    @Getter
+    private final String proxy;
+
+    RemoteRequestException(String proxy, String message) {
+        super(proxy + ": " + message);
+        this.proxy = proxy;
+    }
+}
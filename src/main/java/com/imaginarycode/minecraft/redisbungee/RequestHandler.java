@@ -0,0 +1,29 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+/**
+ * Answers requests sent by other proxies through {@link RedisBungeeAsyncAPI#request(String, String, String)} and its
+ * relatives. Register one with {@link RedisBungeeAPI#registerRequestHandler(String, RequestHandler)}.
+ * <p>
+ * <strong>Warning</strong>: Handlers are called on the asynchronous API's thread pool, so they may block, but every
+ * moment they do holds up other plugins' lookups.
+ *
+ * @since 0.3.3
+ */
+public interface RequestHandler {
+    /**
+     * Answer a request.
+     *
+     * @param proxy   the ID of the proxy that sent the request
+     * @param payload the payload the caller sent
+     * @return the reply to send back; null is sent as an empty string
+     * @throws Exception if the request could not be answered; the caller's future fails with a
+     *                   {@link RemoteRequestException} carrying the exception's description
+     */
+    String handle(String proxy, String payload) throws Exception;
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonParseException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Request/response calls between proxies, carried over PubSub.
+ * <p>
+ * Each proxy listens for requests on {@code redisbungee-rpc-<id>} and {@code redisbungee-rpc-allservers}, and for
+ * replies on {@code redisbungee-rpcreply-<id>}. A request carries an ID that is unique on the calling proxy, and every
+ * reply carries it back, so replies can be matched to calls without any shared state. A request for several proxies is
+ * published once on the shared channel with the list of proxies it is meant for, and its future completes as soon as
+ * all of them have answered or the timeout passes.
+ */
+class RpcManager {
+    private static final String REQUEST_PREFIX = "redisbungee-rpc-";
+    private static final String REPLY_PREFIX = "redisbungee-rpcreply-";
+
+    private final RedisBungee plugin;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentMap<Long, PendingCall> pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RequestHandler> handlers = new ConcurrentHashMap<>();
+    @Getter
+    private final long defaultTimeoutMillis;
+
+    RpcManager(RedisBungee plugin) {
+        this.plugin = plugin;
+        this.defaultTimeoutMillis = Math.max(1, RedisBungee.getConfiguration().getInt("rpc-timeout-ms", 5000));
+    }
+
+    void start() {
+        PubSubHandler requests = new PubSubHandler() {
+            @Override
+            public void onMessage(String channel, String message) {
+                handleRequest(message);
+            }
+        };
+        plugin.getPubSubRegistry().register(REQUEST_PREFIX + plugin.getServerId(), requests);
+        plugin.getPubSubRegistry().register(REQUEST_PREFIX + "allservers", requests);
+        plugin.getPubSubRegistry().register(REPLY_PREFIX + plugin.getServerId(), new PubSubHandler() {
+            @Override
+            public void onMessage(String channel, String message) {
+                handleReply(message);
+            }
+        });
+        plugin.getProxy().getScheduler().schedule(plugin, new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Map.Entry<Long, PendingCall> entry : pending.entrySet())
+                    if (entry.getValue().getDeadline() <= now)
+                        complete(entry.getKey());
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    boolean register(String method, RequestHandler handler) {
+        return handlers.putIfAbsent(method, handler) == null;
+    }
+
+    void unregister(String method) {
+        handlers.remove(method);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Send a request to one proxy. The future fails with a {@link RemoteRequestException} if the proxy could not answer,
+     * or a {@link TimeoutException} if it did not answer in time.
+     */
+    ListenableFuture<String> call(final String proxy, String method, String payload, long timeout, TimeUnit unit) {
+        return Futures.transform(call(Collections.singleton(proxy), method, payload, timeout, unit),
+                new AsyncFunction<PendingCall, String>() {
+                    @Override
+                    public ListenableFuture<String> apply(PendingCall call) {
+                        return call.result(proxy);
+                    }
+                });
+    }
+
+    /**
+     * Send a request to several proxies with a single publish. The future completes with the replies of every proxy
+     * that answered successfully in time; the others are left out.
+     */
+    ListenableFuture<Map<String, String>> callAll(Collection<String> proxies, String method, String payload, long timeout, TimeUnit unit) {
+        return Futures.transform(call(proxies, method, payload, timeout, unit),
+                new Function<PendingCall, Map<String, String>>() {
+                    @Override
+                    public Map<String, String> apply(PendingCall call) {
+                        return call.getReplies();
+                    }
+                });
+    }
+
+    private ListenableFuture<PendingCall> call(Collection<String> proxies, String method, String payload, long timeout, TimeUnit unit) {
+        Set<String> targets = ImmutableSet.copyOf(proxies);
+        PendingCall call = new PendingCall(targets, System.currentTimeMillis() + unit.toMillis(timeout));
+        if (targets.isEmpty()) {
+            call.getFuture().set(call);
+            return call.getFuture();
+        }
+        final long id = nextId.incrementAndGet();
+        pending.put(id, call);
+        final String channel;
+        final String message;
+        if (targets.size() == 1) {
+            channel = REQUEST_PREFIX + targets.iterator().next();
+            message = RedisBungee.getGson().toJson(new Request(id, plugin.getServerId(), method, payload, null));
+        } else {
+            channel = REQUEST_PREFIX + "allservers";
+            message = RedisBungee.getGson().toJson(new Request(id, plugin.getServerId(), method, payload, targets));
+        }
+        try {
+            plugin.getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        plugin.publish(channel, message);
+                    } catch (RuntimeException e) {
+                        fail(id, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(id, e);
+        }
+        return call.getFuture();
+    }
+
+    private void handleRequest(String message) {
+        final Request request;
+        try {
+            request = RedisBungee.getGson().fromJson(message, Request.class);
+        } catch (JsonParseException e) {
+            plugin.getLogger().warning("Ignoring malformed request: " + message);
+            return;
+        }
+        if (request.getTargets() != null && !request.getTargets().contains(plugin.getServerId()))
+            return;
+        final RequestHandler handler = handlers.get(request.getMethod());
+        if (handler == null) {
+            reply(request, null, "no handler for " + request.getMethod());
+            return;
+        }
+        try {
+            plugin.getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    String result;
+                    try {
+                        result = handler.handle(request.getFrom(), request.getPayload());
+                    } catch (Exception e) {
+                        reply(request, null, e.toString());
+                        return;
+                    }
+                    reply(request, result == null ? "" : result, null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reply(request, null, "too busy to answer");
+        }
+    }
+
+    private void reply(Request request, String payload, String error) {
+        try {
+            plugin.publish(REPLY_PREFIX + request.getFrom(),
+                    RedisBungee.getGson().toJson(new Reply(request.getId(), plugin.getServerId(), payload, error)));
+        } catch (RuntimeException e) {
+            plugin.getLogger().log(Level.WARNING, "Unable to answer request from " + request.getFrom(), e);
+        }
+    }
+
+    private void handleReply(String message) {
+        Reply reply;
+        try {
+            reply = RedisBungee.getGson().fromJson(message, Reply.class);
+        } catch (JsonParseException e) {
+            plugin.getLogger().warning("Ignoring malformed reply: " + message);
+            return;
+        }
+        PendingCall call = pending.get(reply.getId());
+        if (call != null && call.reply(reply.getFrom(), reply.getPayload(), reply.getError()))
+            complete(reply.getId());
+    }
+
+    private void complete(long id) {
+        PendingCall call = pending.remove(id);
+        if (call != null)
+            call.getFuture().set(call);
+    }
+
+    private void fail(long id, Exception e) {
+        PendingCall call = pending.remove(id);
+        if (call != null)
+            call.getFuture().setException(e);
+    }
+
+    /**
+     * Complete every call still waiting with whatever replies it has.
+     */
+    void stop() {
+        for (Long id : new ArrayList<>(pending.keySet()))
+            complete(id);
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Request {
+        private final long id;
+        private final String from;
+        private final String method;
+        private final String payload;
+        private final Set<String> targets;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Reply {
+        private final long id;
+        private final String from;
+        private final String payload;
+        private final String error;
+    }
+
+    private static class PendingCall {
+        private final Set<String> expected;
+        @Getter
+        private final long deadline;
+        private final Map<String, String> replies = new HashMap<>();
+        private final Map<String, String> errors = new HashMap<>();
+        @Getter
+        private final SettableFuture<PendingCall> future = SettableFuture.create();
+
+        private PendingCall(Set<String> expected, long deadline) {
+            this.expected = expected;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true once every proxy has answered
+         */
+        synchronized boolean reply(String proxy, String payload, String error) {
+            if (!expected.contains(proxy))
+                return false;
+            if (error == null)
+                replies.put(proxy, payload == null ? "" : payload);
+            else
+                errors.put(proxy, error);
+            return replies.size() + errors.size() >= expected.size();
+        }
+
+        synchronized Map<String, String> getReplies() {
+            return ImmutableMap.copyOf(replies);
+        }
+
+        synchronized ListenableFuture<String> result(String proxy) {
+            if (replies.containsKey(proxy))
+                return Futures.immediateFuture(replies.get(proxy));
+            if (errors.containsKey(proxy))
+                return Futures.immediateFailedFuture(new RemoteRequestException(proxy, errors.get(proxy)));
+            return Futures.immediateFailedFuture(new TimeoutException(proxy + " did not answer in time"));
+        }
+    }
+}
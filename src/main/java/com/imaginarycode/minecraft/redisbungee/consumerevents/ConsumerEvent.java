@@ -6,5 +6,11 @@
  */
 package com.imaginarycode.minecraft.redisbungee.consumerevents;
 
+import java.util.UUID;
+
+/**
+ * An event queued to the consumer. Events only carry the plain values they need, never the player object itself.
+ */
 public interface ConsumerEvent {
+    UUID getUuid();
 }
@@ -8,12 +8,13 @@ package com.imaginarycode.minecraft.redisbungee.consumerevents;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
-import net.md_5.bungee.api.config.ServerInfo;
-import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.UUID;
 
 @AllArgsConstructor
 @Getter
 public class PlayerChangedServerConsumerEvent implements ConsumerEvent {
-    private final ProxiedPlayer player;
-    private final ServerInfo newServer;
+    private final UUID uuid;
+    private final String previousServer;
+    private final String newServer;
 }
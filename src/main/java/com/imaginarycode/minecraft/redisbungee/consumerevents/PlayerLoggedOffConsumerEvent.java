@@ -8,10 +8,12 @@ package com.imaginarycode.minecraft.redisbungee.consumerevents;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
-import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.util.UUID;
 
 @AllArgsConstructor
 @Getter
 public class PlayerLoggedOffConsumerEvent implements ConsumerEvent {
-    private final ProxiedPlayer player;
+    private final UUID uuid;
+    private final String lastServer;
 }
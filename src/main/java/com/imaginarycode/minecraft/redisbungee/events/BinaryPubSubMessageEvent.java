@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.events;
+
+import lombok.RequiredArgsConstructor;
+import net.md_5.bungee.api.plugin.Event;
+
+/**
+ * This event is posted when a message is received on a binary PubSub channel registered with
+ * {@link com.imaginarycode.minecraft.redisbungee.RedisBungeeAPI#registerBinaryPubSubChannels(String...)}.
+ * <p>
+ * <strong>Warning</strong>: This event is fired in a separate thread!
+ *
+ * @since 0.3.3
+ */
+@RequiredArgsConstructor
+public class BinaryPubSubMessageEvent extends Event {
+    private final String channel;
+    private final byte[] message;
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the message, already decompressed. The same array is passed to every listener, so do not modify it.
+     */
+    public byte[] getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.events;
+
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import net.md_5.bungee.api.plugin.Event;
+
+import java.util.UUID;
+
+/**
+ * This event is posted when a player joins a proxy anywhere on the network, including this one.
+ * <p>
+ * <strong>Warning</strong>: This event is fired in a separate thread!
+ *
+ * @since 0.3.3
+ */
+@RequiredArgsConstructor
+@ToString
+public class NetworkPlayerJoinEvent extends Event {
+    private final UUID player;
+    private final String proxy;
+
+    public UUID getPlayer() {
+        return player;
+    }
+
+    public String getProxy() {
+        return proxy;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.events;
+
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import net.md_5.bungee.api.plugin.Event;
+
+import java.util.UUID;
+
+/**
+ * This event is posted when a player anywhere on the network, including this proxy, connects to a server.
+ * <p>
+ * <strong>Warning</strong>: This event is fired in a separate thread!
+ *
+ * @since 0.3.3
+ */
+@RequiredArgsConstructor
+@ToString
+public class NetworkServerSwitchEvent extends Event {
+    private final UUID player;
+    private final String proxy;
+    private final String previousServer;
+    private final String server;
+
+    public UUID getPlayer() {
+        return player;
+    }
+
+    public String getProxy() {
+        return proxy;
+    }
+
+    /**
+     * @return the server the player was on before, or null if they have just joined
+     */
+    public String getPreviousServer() {
+        return previousServer;
+    }
+
+    public String getServer() {
+        return server;
+    }
+}
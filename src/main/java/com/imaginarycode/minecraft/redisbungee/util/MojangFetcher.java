@@ -0,0 +1,253 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Looks up names and UUIDs with Mojang.
+ * <p>
+ * Requests are spread over a fixed number of worker threads and paced by a token bucket. Every response is read to the
+ * end and closed so that the JVM can keep the connection alive for the next request. When Mojang answers with
+ * {@code 429 Too Many Requests}, every worker holds off for as long as Mojang asks before trying again.
+ */
+public class MojangFetcher {
+    private static final int PROFILES_PER_REQUEST = 100;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private final String profileUrl;
+    private final String sessionUrl;
+    private final RateLimiter rateLimiter;
+    private final ListeningExecutorService executor;
+    private final int timeoutMillis;
+    private volatile long pausedUntil;
+
+    public MojangFetcher(String profileUrl, String sessionUrl, double requestsPerSecond, int concurrency, int timeoutMillis) {
+        this.profileUrl = profileUrl;
+        this.sessionUrl = sessionUrl.endsWith("/") ? sessionUrl : sessionUrl + "/";
+        this.rateLimiter = RateLimiter.create(requestsPerSecond);
+        this.timeoutMillis = timeoutMillis;
+        final AtomicInteger threadId = new AtomicInteger();
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RedisBungee Mojang Fetcher #" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Look up the UUIDs for the given names, {@value #PROFILES_PER_REQUEST} names per request. Names Mojang does not know
+     * are left out of the result, which is keyed by the name as Mojang spells it.
+     */
+    public ListenableFuture<Map<String, UUID>> fetchUuids(List<String> names) {
+        List<ListenableFuture<Map<String, UUID>>> futures = new ArrayList<>();
+        for (final List<String> chunk : Lists.partition(new ArrayList<>(names), PROFILES_PER_REQUEST)) {
+            futures.add(executor.submit(new Callable<Map<String, UUID>>() {
+                @Override
+                public Map<String, UUID> call() throws Exception {
+                    return fetchProfiles(chunk);
+                }
+            }));
+        }
+        return Futures.transform(Futures.allAsList(futures), new Function<List<Map<String, UUID>>, Map<String, UUID>>() {
+            @Override
+            public Map<String, UUID> apply(List<Map<String, UUID>> results) {
+                Map<String, UUID> merged = new HashMap<>();
+                for (Map<String, UUID> result : results)
+                    merged.putAll(result);
+                return merged;
+            }
+        });
+    }
+
+    /**
+     * Look up the current names for the given UUIDs. Mojang only answers one UUID per request, so these run concurrently.
+     * UUIDs Mojang does not know are left out of the result.
+     */
+    public ListenableFuture<Map<UUID, String>> fetchNames(List<UUID> uuids) {
+        final List<UUID> requested = new ArrayList<>(uuids);
+        List<ListenableFuture<String>> futures = new ArrayList<>();
+        for (final UUID uuid : requested) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return fetchName(uuid);
+                }
+            }));
+        }
+        return Futures.transform(Futures.allAsList(futures), new Function<List<String>, Map<UUID, String>>() {
+            @Override
+            public Map<UUID, String> apply(List<String> names) {
+                Map<UUID, String> result = new HashMap<>();
+                for (int i = 0; i < names.size(); i++)
+                    if (names.get(i) != null)
+                        result.put(requested.get(i), names.get(i));
+                return result;
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Map<String, UUID> fetchProfiles(List<String> names) throws IOException, InterruptedException {
+        StringWriter body = new StringWriter();
+        JsonWriter writer = new JsonWriter(body);
+        writer.beginArray();
+        for (String name : names)
+            writer.value(name);
+        writer.endArray();
+        writer.close();
+
+        HttpURLConnection connection = request(profileUrl, body.toString());
+        Map<String, UUID> result = new HashMap<>();
+        if (connection == null)
+            return result;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), Charsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String id = null;
+                String name = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "id":
+                            id = reader.nextString();
+                            break;
+                        case "name":
+                            name = reader.nextString();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+                if (id != null && name != null)
+                    result.put(name, getUUID(id));
+            }
+            reader.endArray();
+        }
+        return result;
+    }
+
+    private String fetchName(UUID uuid) throws IOException, InterruptedException {
+        HttpURLConnection connection = request(sessionUrl + uuid.toString().replace("-", ""), null);
+        if (connection == null)
+            return null;
+        String name = null;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(connection.getInputStream(), Charsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "errorMessage":
+                        throw new IllegalStateException(reader.nextString());
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (EOFException e) {
+            // An empty body: Mojang doesn't know this UUID.
+            return null;
+        }
+        return name;
+    }
+
+    /**
+     * Send a request, waiting for the rate limiter and for any 429 back-off. Returns the connection ready for its body
+     * to be read, or null if Mojang answered with no content.
+     */
+    private HttpURLConnection request(String url, String body) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            long pause = pausedUntil - System.currentTimeMillis();
+            if (pause > 0)
+                Thread.sleep(pause);
+            rateLimiter.acquire();
+
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setUseCaches(false);
+            if (body != null) {
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(Charsets.UTF_8));
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status == 429 && attempt < MAX_ATTEMPTS) {
+                discard(connection);
+                pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfter(connection));
+                continue;
+            }
+            if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+                discard(connection);
+                return null;
+            }
+            if (status >= 400) {
+                discard(connection);
+                throw new IOException("Mojang answered " + url + " with HTTP " + status);
+            }
+            return connection;
+        }
+    }
+
+    private static long retryAfter(HttpURLConnection connection) {
+        String header = connection.getHeaderField("Retry-After");
+        if (header != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return DEFAULT_RETRY_AFTER_MILLIS;
+    }
+
+    /**
+     * Read whatever is left of a response, so that its connection can be kept alive and reused.
+     */
+    private static void discard(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        try {
+            if (in == null)
+                in = connection.getInputStream();
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static UUID getUUID(String id) {
+        return UUID.fromString(id.substring(0, 8) + "-" + id.substring(8, 12) + "-" + id.substring(12, 16) + "-" + id.substring(16, 20) + "-" + id.substring(20, 32));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee.util;
+
+import com.google.common.base.Charsets;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An append-only log of name/UUID pairs, so that {@link UUIDTranslator} does not start cold after a restart.
+ * <p>
+ * Each line holds a UUID and a name separated by a tab; later lines win. New pairs are buffered in memory and appended in
+ * bulk by {@link #flush()}. Once the log holds far more lines than live pairs, {@link #compact(Map)} rewrites it.
+ */
+class NameCacheFile {
+    private final File file;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private int lines = 0;
+
+    NameCacheFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read every pair in the log, keeping only the latest name for each UUID.
+     */
+    synchronized Map<UUID, String> load() throws IOException {
+        Map<UUID, String> pairs = new LinkedHashMap<>();
+        if (!file.exists())
+            return pairs;
+        lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                int tab = line.indexOf('\t');
+                if (tab == -1)
+                    continue;
+                try {
+                    pairs.put(UUID.fromString(line.substring(0, tab)), line.substring(tab + 1));
+                } catch (IllegalArgumentException ignored) {
+                    // A torn write from a crash; skip it.
+                }
+            }
+        }
+        return pairs;
+    }
+
+    void append(String name, UUID uuid) {
+        pending.add(uuid + "\t" + name);
+    }
+
+    synchronized void flush() throws IOException {
+        if (pending.isEmpty())
+            return;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8))) {
+            String line;
+            while ((line = pending.poll()) != null) {
+                writer.write(line);
+                writer.write('\n');
+                lines++;
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log to hold just the given pairs, if enough of it is stale to be worth the trouble. {@code live} should
+     * be a live view, so that nothing appended while we flush is lost.
+     */
+    synchronized void compact(Map<UUID, String> live) throws IOException {
+        if (lines <= 2 * live.size() + 1000)
+            return;
+        flush();
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), Charsets.UTF_8))) {
+            for (Map.Entry<UUID, String> entry : live.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue());
+                writer.write('\n');
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = live.size();
+    }
+}
@@ -7,46 +7,161 @@
 package com.imaginarycode.minecraft.redisbungee.util;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.imaginarycode.minecraft.redisbungee.RedisBungee;
+import com.imaginarycode.minecraft.redisbungee.RedisKeys;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.exceptions.JedisException;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
-@RequiredArgsConstructor
 public class UUIDTranslator {
     private final RedisBungee plugin;
-    private final BiMap<String, UUID> uuidMap = HashBiMap.create();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final MojangFetcher fetcher;
+    /**
+     * Keyed by lowercase name, so that lookups ignoring case are as cheap as any other.
+     */
+    private final Cache<String, CachedName> nameToUuid;
+    private final Cache<UUID, String> uuidToName;
+    /**
+     * Names and UUIDs that Mojang told us do not exist, briefly remembered so that we don't keep asking.
+     */
+    private final Cache<String, Boolean> missingNames;
+    private final Cache<UUID, Boolean> missingUuids;
+    /**
+     * The on-disk copy of the cache, or null if it is not kept on disk.
+     */
+    private volatile NameCacheFile cacheFile;
+    /**
+     * Lookups currently in progress, so that concurrent lookups of the same player share one request. Cheap lookups
+     * are tracked apart from expensive ones, since a cheap lookup can't answer an expensive one.
+     */
+    private final ConcurrentMap<String, SettableFuture<UUID>> uuidLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SettableFuture<UUID>> expensiveUuidLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, SettableFuture<String>> nameLookups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, SettableFuture<String>> expensiveNameLookups = new ConcurrentHashMap<>();
     private static final Pattern UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{8}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{12}");
     private static final Pattern MOJANGIAN_UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{32}");
 
-    public UUID getTranslatedUuid(@NonNull String player, boolean expensiveLookups) {
-        if (ProxyServer.getInstance().getPlayer(player) != null)
-            return ProxyServer.getInstance().getPlayer(player).getUniqueId();
+    public UUIDTranslator(RedisBungee plugin, MojangFetcher fetcher, long maximumSize, long expireAfterAccessMinutes,
+                          long negativeExpirySeconds) {
+        this.plugin = plugin;
+        this.fetcher = fetcher;
+        this.nameToUuid = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+        this.uuidToName = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccessMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+        this.missingNames = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(negativeExpirySeconds, TimeUnit.SECONDS)
+                .build();
+        this.missingUuids = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(negativeExpirySeconds, TimeUnit.SECONDS)
+                .build();
+    }
 
-        UUID uuid;
+    public CacheStats getNameCacheStats() {
+        return nameToUuid.stats();
+    }
 
-        // Check if it exists in the map
-        lock.readLock().lock();
-        try {
-            uuid = uuidMap.get(player);
-            if (uuid != null)
-                return uuid;
-        } finally {
-            lock.readLock().unlock();
+    public CacheStats getUuidCacheStats() {
+        return uuidToName.stats();
+    }
+
+    public long getNameCacheSize() {
+        return nameToUuid.size();
+    }
+
+    public long getUuidCacheSize() {
+        return uuidToName.size();
+    }
+
+    /**
+     * Keep a copy of the cache in the given file, so that it survives a restart.
+     */
+    public void enablePersistence(File file) {
+        cacheFile = new NameCacheFile(file);
+    }
+
+    /**
+     * Fill the cache from disk. Anything already cached is newer and is kept.
+     *
+     * @return the number of pairs read
+     */
+    public int loadPersisted() throws IOException {
+        if (cacheFile == null)
+            return 0;
+        Map<UUID, String> pairs = cacheFile.load();
+        for (Map.Entry<UUID, String> entry : pairs.entrySet()) {
+            if (uuidToName.asMap().putIfAbsent(entry.getKey(), entry.getValue()) == null)
+                nameToUuid.asMap().putIfAbsent(entry.getValue().toLowerCase(), new CachedName(entry.getValue(), entry.getKey()));
         }
+        return pairs.size();
+    }
+
+    public void flushPersisted() throws IOException {
+        if (cacheFile == null)
+            return;
+        cacheFile.flush();
+        cacheFile.compact(uuidToName.asMap());
+    }
+
+    public UUID getTranslatedUuid(@NonNull final String player, final boolean expensiveLookups) {
+        UUID uuid = resolveLocally(player);
+        if (uuid != null)
+            return uuid;
+
+        String key = player.toLowerCase();
+        if (missingNames.getIfPresent(key) != null)
+            return null;
+
+        return singleFlight(expensiveLookups ? expensiveUuidLookups : uuidLookups, key, new Callable<UUID>() {
+            @Override
+            public UUID call() {
+                return lookUpUuid(player, expensiveLookups);
+            }
+        });
+    }
+
+    /**
+     * Find a UUID without asking Redis or Mojang, or return null.
+     */
+    private UUID resolveLocally(String player) {
+        if (ProxyServer.getInstance().getPlayer(player) != null)
+            return ProxyServer.getInstance().getPlayer(player).getUniqueId();
+
+        // Check if it exists in the cache, ignoring case
+        CachedName cached = nameToUuid.getIfPresent(player.toLowerCase());
+        if (cached != null)
+            return cached.getUuid();
 
         // Check if we can exit early
         if (UUID_PATTERN.matcher(player).find()) {
@@ -55,44 +170,31 @@ public class UUIDTranslator {
 
         if (MOJANGIAN_UUID_PATTERN.matcher(player).find()) {
             // Reconstruct the UUID
-            return UUIDFetcher.getUUID(player);
+            return MojangFetcher.getUUID(player);
         }
 
         if (!plugin.getProxy().getConfig().isOnlineMode()) {
-            uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + player).getBytes(Charsets.UTF_8));
-            uuidMap.put(player, uuid);
+            UUID uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + player).getBytes(Charsets.UTF_8));
+            remember(player, uuid);
             return uuid;
         }
 
-        // We could not exit early. Look for the name, ignoring case.
-        if (expensiveLookups) {
-            lock.readLock().lock();
-            try {
-                for (Map.Entry<String, UUID> entry : uuidMap.entrySet()) {
-                    if (entry.getKey().equalsIgnoreCase(player)) {
-                        return entry.getValue();
-                    }
-                }
-            } finally {
-                lock.readLock().unlock();
-            }
-        }
+        return null;
+    }
 
-        // Okay, it wasn't locally cached and the expensive search didn't help us. Let's try Redis.
+    private UUID lookUpUuid(String player, boolean expensiveLookups) {
+        UUID uuid;
+
+        // Okay, it wasn't locally cached. Let's try Redis.
         Jedis jedis = plugin.getPool().getResource();
         try {
             try {
-                String stored = jedis.hget("uuids", player.toLowerCase());
+                String stored = jedis.hget(RedisKeys.UUIDS, player.toLowerCase());
                 if (stored != null && UUID_PATTERN.matcher(stored).find()) {
                     // This is it!
                     uuid = UUID.fromString(stored);
                     storeInfo(player, uuid, jedis);
-                    lock.writeLock().lock();
-                    try {
-                        uuidMap.put(player, uuid);
-                    } finally {
-                        lock.writeLock().unlock();
-                    }
+                    remember(player, uuid);
                     return uuid;
                 }
 
@@ -102,27 +204,22 @@ public class UUIDTranslator {
 
                 Map<String, UUID> uuidMap1;
                 try {
-                    uuidMap1 = new UUIDFetcher(Collections.singletonList(player)).call();
+                    uuidMap1 = fetcher.fetchUuids(Collections.singletonList(player)).get();
                 } catch (Exception e) {
                     plugin.getLogger().log(Level.SEVERE, "Unable to fetch UUID from Mojang for " + player, e);
                     return null;
                 }
                 for (Map.Entry<String, UUID> entry : uuidMap1.entrySet()) {
                     if (entry.getKey().equalsIgnoreCase(player)) {
-                        lock.writeLock().lock();
-                        try {
-                            uuidMap.put(entry.getKey(), entry.getValue());
-                        } finally {
-                            lock.writeLock().unlock();
-                        }
+                        remember(entry.getKey(), entry.getValue());
                         storeInfo(entry.getKey(), entry.getValue(), jedis);
                         return entry.getValue();
                     }
                 }
+                missingNames.put(player.toLowerCase(), Boolean.TRUE);
             } catch (JedisException e) {
                 plugin.getLogger().log(Level.SEVERE, "Unable to fetch UUID for " + player, e);
-                // Go ahead and give them what we have.
-                return uuid;
+                return null;
             }
         } finally {
             plugin.getPool().returnResource(jedis);
@@ -131,34 +228,36 @@ public class UUIDTranslator {
         return null; // Nope, game over!
     }
 
-    public String getNameFromUuid(@NonNull UUID player, boolean expensiveLookups) {
+    public String getNameFromUuid(@NonNull final UUID player, final boolean expensiveLookups) {
         if (ProxyServer.getInstance().getPlayer(player) != null)
             return ProxyServer.getInstance().getPlayer(player).getName();
 
-        String name;
-
-        lock.readLock().lock();
-        try {
-            name = uuidMap.inverse().get(player);
-        } finally {
-            lock.readLock().unlock();
-        }
+        String name = uuidToName.getIfPresent(player);
 
         if (name != null)
             return name;
 
+        if (missingUuids.getIfPresent(player) != null)
+            return null;
+
+        return singleFlight(expensiveLookups ? expensiveNameLookups : nameLookups, player, new Callable<String>() {
+            @Override
+            public String call() {
+                return lookUpName(player, expensiveLookups);
+            }
+        });
+    }
+
+    private String lookUpName(UUID player, boolean expensiveLookups) {
+        String name = null;
+
         // Okay, it wasn't locally cached. Let's try Redis.
         Jedis jedis = plugin.getPool().getResource();
         try {
-            String stored = jedis.hget("player:" + player, "name");
+            String stored = jedis.hget(RedisKeys.player(player), "name");
             if (stored != null) {
                 name = stored;
-                lock.writeLock().lock();
-                try {
-                    uuidMap.put(name, player);
-                } finally {
-                    lock.writeLock().unlock();
-                }
+                remember(name, player);
                 return name;
             }
 
@@ -167,7 +266,7 @@ public class UUIDTranslator {
 
             // That didn't work. Let's ask Mojang.
             try {
-                name = new NameFetcher(Collections.singletonList(player)).call().get(player);
+                name = fetcher.fetchNames(Collections.singletonList(player)).get().get(player);
             } catch (Exception e) {
                 plugin.getLogger().log(Level.SEVERE, "Unable to fetch name from Mojang for " + player, e);
                 return null;
@@ -175,15 +274,11 @@ public class UUIDTranslator {
 
             if (name != null) {
                 storeInfo(name, player, jedis);
-                lock.writeLock().lock();
-                try {
-                    uuidMap.put(name, player);
-                } finally {
-                    lock.writeLock().unlock();
-                }
+                remember(name, player);
                 return name;
             }
 
+            missingUuids.put(player, Boolean.TRUE);
             return null;
         } catch (JedisException e) {
             plugin.getLogger().log(Level.SEVERE, "Unable to fetch name for " + player, e);
@@ -193,8 +288,191 @@ public class UUIDTranslator {
         }
     }
 
+    /**
+     * Run a lookup, unless the same lookup is already running, in which case wait for its result instead.
+     */
+    private static <K, V> V singleFlight(ConcurrentMap<K, SettableFuture<V>> inFlight, K key, Callable<V> lookup) {
+        SettableFuture<V> future = SettableFuture.create();
+        SettableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return Uninterruptibles.getUninterruptibly(existing);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        try {
+            V value = lookup.call();
+            future.set(value);
+            return value;
+        } catch (Exception e) {
+            future.setException(e);
+            throw Throwables.propagate(e);
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Translate many names at once. Names are taken from the local cache where possible, the rest are read from Redis in
+     * one pipeline, and if {@code expensiveLookups} is true, anything still missing is sent to Mojang 100 names at a time.
+     * Names that could not be translated are left out of the result.
+     */
+    public Map<String, UUID> getUuidsFromNames(@NonNull Collection<String> names, boolean expensiveLookups) {
+        Map<String, UUID> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String name : names) {
+            UUID uuid = resolveLocally(name);
+            if (uuid != null)
+                result.put(name, uuid);
+            else if (missingNames.getIfPresent(name.toLowerCase()) == null)
+                missing.add(name);
+        }
+        if (missing.isEmpty())
+            return result;
+
+        Jedis jedis = plugin.getPool().getResource();
+        try {
+            String[] fields = new String[missing.size()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = missing.get(i).toLowerCase();
+            List<String> stored = jedis.hmget(RedisKeys.UUIDS, fields);
+            List<String> stillMissing = new ArrayList<>();
+            for (int i = 0; i < fields.length; i++) {
+                String value = stored.get(i);
+                if (value != null && UUID_PATTERN.matcher(value).find()) {
+                    UUID uuid = UUID.fromString(value);
+                    remember(missing.get(i), uuid);
+                    result.put(missing.get(i), uuid);
+                } else {
+                    stillMissing.add(missing.get(i));
+                }
+            }
+
+            if (!expensiveLookups || stillMissing.isEmpty())
+                return result;
+
+            // That didn't work. Let's ask Mojang. The fetcher sends the names 100 at a time.
+            Map<String, UUID> fetched;
+            try {
+                fetched = fetcher.fetchUuids(stillMissing).get();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to fetch UUIDs from Mojang for " + stillMissing.size() + " names", e);
+                return result;
+            }
+            Map<String, Map.Entry<String, UUID>> byLowercase = new HashMap<>();
+            for (Map.Entry<String, UUID> entry : fetched.entrySet())
+                byLowercase.put(entry.getKey().toLowerCase(), entry);
+            Pipeline pipeline = jedis.pipelined();
+            for (String name : stillMissing) {
+                Map.Entry<String, UUID> entry = byLowercase.get(name.toLowerCase());
+                if (entry != null) {
+                    remember(entry.getKey(), entry.getValue());
+                    storeInfo(entry.getKey(), entry.getValue(), pipeline);
+                    result.put(name, entry.getValue());
+                } else {
+                    missingNames.put(name.toLowerCase(), Boolean.TRUE);
+                }
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to fetch UUIDs for " + missing.size() + " names", e);
+        } finally {
+            plugin.getPool().returnResource(jedis);
+        }
+        return result;
+    }
+
+    /**
+     * Translate many UUIDs at once. Names are taken from the local cache where possible, the rest are read from Redis in
+     * one pipeline, and if {@code expensiveLookups} is true, anything still missing is looked up with Mojang. UUIDs that
+     * could not be translated are left out of the result.
+     */
+    public Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> uuids, boolean expensiveLookups) {
+        Map<UUID, String> result = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            ProxiedPlayer player = ProxyServer.getInstance().getPlayer(uuid);
+            String name = player != null ? player.getName() : uuidToName.getIfPresent(uuid);
+            if (name != null)
+                result.put(uuid, name);
+            else if (missingUuids.getIfPresent(uuid) == null)
+                missing.add(uuid);
+        }
+        if (missing.isEmpty())
+            return result;
+
+        Jedis jedis = plugin.getPool().getResource();
+        try {
+            List<Response<String>> responses = new ArrayList<>(missing.size());
+            Pipeline pipeline = jedis.pipelined();
+            for (UUID uuid : missing)
+                responses.add(pipeline.hget(RedisKeys.player(uuid), "name"));
+            pipeline.sync();
+            List<UUID> stillMissing = new ArrayList<>();
+            for (int i = 0; i < missing.size(); i++) {
+                String name = responses.get(i).get();
+                if (name != null) {
+                    remember(name, missing.get(i));
+                    result.put(missing.get(i), name);
+                } else {
+                    stillMissing.add(missing.get(i));
+                }
+            }
+
+            if (!expensiveLookups || stillMissing.isEmpty())
+                return result;
+
+            // That didn't work. Let's ask Mojang.
+            Map<UUID, String> fetched;
+            try {
+                fetched = fetcher.fetchNames(stillMissing).get();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Unable to fetch names from Mojang for " + stillMissing.size() + " UUIDs", e);
+                return result;
+            }
+            pipeline = jedis.pipelined();
+            for (UUID uuid : stillMissing) {
+                String name = fetched.get(uuid);
+                if (name != null) {
+                    remember(name, uuid);
+                    storeInfo(name, uuid, pipeline);
+                    result.put(uuid, name);
+                } else {
+                    missingUuids.put(uuid, Boolean.TRUE);
+                }
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to fetch names for " + missing.size() + " UUIDs", e);
+        } finally {
+            plugin.getPool().returnResource(jedis);
+        }
+        return result;
+    }
+
+    private void remember(String name, UUID uuid) {
+        nameToUuid.put(name.toLowerCase(), new CachedName(name, uuid));
+        uuidToName.put(uuid, name);
+        NameCacheFile file = cacheFile;
+        if (file != null)
+            file.append(name, uuid);
+    }
+
     private static void storeInfo(String name, UUID uuid, Jedis jedis) {
-        jedis.hset("uuids", name.toLowerCase(), uuid.toString());
-        jedis.hset("player:" + uuid, "name", name);
+        jedis.hset(RedisKeys.UUIDS, name.toLowerCase(), uuid.toString());
+        jedis.hset(RedisKeys.player(uuid), "name", name);
+    }
+
+    private static void storeInfo(String name, UUID uuid, Pipeline pipeline) {
+        pipeline.hset(RedisKeys.UUIDS, name.toLowerCase(), uuid.toString());
+        pipeline.hset(RedisKeys.player(uuid), "name", name);
+    }
+
+    @AllArgsConstructor
+    @Getter
+    private static class CachedName {
+        private final String name;
+        private final UUID uuid;
     }
 }
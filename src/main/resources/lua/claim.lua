@@ -0,0 +1,13 @@
+-- Claims a logging-in player for a proxy, taking the claim over only if its holder's lease has expired.
+-- KEYS[1] = online, KEYS[2] = proxy:<holder>:lease (any key if there was no holder)
+-- ARGV[1] = uuid, ARGV[2] = proxy, ARGV[3] = the holder seen before the call, or an empty string for none
+local holder = redis.call('hget', KEYS[1], ARGV[1]) or ''
+if holder ~= ARGV[3] then
+    -- The claim changed hands since the caller looked, so KEYS[2] is the wrong lease. The caller looks again.
+    return -1
+end
+if holder ~= '' and holder ~= ARGV[2] and redis.call('exists', KEYS[2]) == 1 then
+    return 0
+end
+redis.call('hset', KEYS[1], ARGV[1], ARGV[2])
+return 1
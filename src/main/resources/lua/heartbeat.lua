@@ -0,0 +1,23 @@
+-- Renews a proxy's lease and publishes its player count, then reports whether the lease had lapsed, which proxies are
+-- registered and what each of them last reported. The caller checks which of them still hold a lease, as their lease
+-- keys are not known up front.
+-- KEYS[1] = proxy:<proxy>:lease, KEYS[2] = proxies, KEYS[3] = playerCounts
+-- ARGV[1] = proxy, ARGV[2] = lease length in milliseconds, ARGV[3] = player count
+local held = redis.call('exists', KEYS[1])
+redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])
+redis.call('sadd', KEYS[2], ARGV[1])
+redis.call('hset', KEYS[3], ARGV[1], ARGV[3])
+local proxies = redis.call('smembers', KEYS[2])
+local counts = redis.call('hgetall', KEYS[3])
+-- TIME must come last: older Redis versions refuse writes after it.
+local time = redis.call('time')
+-- Replies are kept flat: the time, whether our lease was still held, the number of proxies, then each proxy, then
+-- each proxy in playerCounts followed by its count.
+local reply = {time[1], time[2], held, #proxies}
+for _, v in ipairs(proxies) do
+    table.insert(reply, v)
+end
+for _, v in ipairs(counts) do
+    table.insert(reply, v)
+end
+return reply
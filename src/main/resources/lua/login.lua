@@ -0,0 +1,10 @@
+-- Records a player logging in to a proxy, and claims them for it unless another proxy already has.
+-- KEYS[1] = server:<proxy>:usersOnline, KEYS[2] = player:<uuid>, KEYS[3] = uuids, KEYS[4] = online
+-- ARGV[1] = uuid, ARGV[2] = name, ARGV[3] = lowercase name, ARGV[4] = ip, ARGV[5] = proxy
+-- Replies with nothing, like the other scripts the consumer queues.
+redis.call('sadd', KEYS[1], ARGV[1])
+redis.call('hmset', KEYS[2], 'online', '0', 'ip', ARGV[4], 'name', ARGV[2])
+redis.call('hset', KEYS[3], ARGV[3], ARGV[1])
+-- The claim is normally made as the player logs in. This restores it should it have been released in the meantime.
+redis.call('hsetnx', KEYS[4], ARGV[1], ARGV[5])
+return false
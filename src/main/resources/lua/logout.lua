@@ -0,0 +1,25 @@
+-- Records a player leaving a proxy, releasing their claim and backend index entry.
+-- KEYS[1] = server:<proxy>:usersOnline, KEYS[2] = player:<uuid>, KEYS[3] = online,
+-- KEYS[4] = backend:<server>:players for the server the caller believes the player is on, if any
+-- ARGV[1] = uuid, ARGV[2] = current time in milliseconds, ARGV[3] = proxy, ARGV[4] = that server, if any
+-- Replies with nothing, or with the uuid and a tab and the server the player was really on, if the caller named
+-- another. The caller must then remove the player from that server's set itself, as the key was not declared.
+redis.call('srem', KEYS[1], ARGV[1])
+local holder = redis.call('hget', KEYS[3], ARGV[1])
+if holder and holder ~= ARGV[3] then
+    -- The player has already moved on to another proxy, which now owns the rest of their state.
+    return false
+end
+local server = redis.call('hget', KEYS[2], 'server')
+if KEYS[4] then
+    redis.call('srem', KEYS[4], ARGV[1])
+end
+redis.call('hdel', KEYS[2], 'server', 'ip')
+redis.call('hset', KEYS[2], 'online', ARGV[2])
+if holder then
+    redis.call('hdel', KEYS[3], ARGV[1])
+end
+if server and server ~= ARGV[4] then
+    return ARGV[1] .. '\t' .. server
+end
+return false
@@ -0,0 +1,22 @@
+-- Takes on the job of logging out every player of a proxy whose lease has expired. Only one caller at a time gets it.
+-- KEYS[1] = proxy:<proxy>:lease, KEYS[2] = server:<proxy>:usersOnline, KEYS[3] = proxies, KEYS[4] = playerCounts,
+-- KEYS[5] = reclaim:<proxy>
+-- ARGV[1] = proxy, ARGV[2] = the proxy asking, ARGV[3] = how long its claim lasts in milliseconds
+-- Replies with the proxy's players, which the caller then logs out with logout.lua before deleting both
+-- server:<proxy>:usersOnline and its claim, or with nothing if there is nothing to do or someone else is doing it.
+-- Should the caller die first, the set is still there for whoever takes over once its claim runs out.
+if redis.call('exists', KEYS[1]) == 1 then
+    -- The proxy renewed its lease after all.
+    return false
+end
+if not redis.call('set', KEYS[5], ARGV[2], 'NX', 'PX', ARGV[3]) then
+    -- Someone else is reclaiming it right now.
+    return false
+end
+if redis.call('srem', KEYS[3], ARGV[1]) == 0 and redis.call('exists', KEYS[2]) == 0 then
+    -- Someone else has already reclaimed it.
+    redis.call('del', KEYS[5])
+    return false
+end
+redis.call('hdel', KEYS[4], ARGV[1])
+return redis.call('smembers', KEYS[2])
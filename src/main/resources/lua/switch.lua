@@ -0,0 +1,15 @@
+-- Moves a player from one backend server to another.
+-- KEYS[1] = player:<uuid>, KEYS[2] = backend:<new server>:players,
+-- KEYS[3] = backend:<previous server>:players for the server the caller believes the player was on, if any
+-- ARGV[1] = uuid, ARGV[2] = new server, ARGV[3] = that previous server, if any
+-- Replies as logout.lua does.
+local old = redis.call('hget', KEYS[1], 'server')
+if KEYS[3] then
+    redis.call('srem', KEYS[3], ARGV[1])
+end
+redis.call('sadd', KEYS[2], ARGV[1])
+redis.call('hset', KEYS[1], 'server', ARGV[2])
+if old and old ~= ARGV[3] and old ~= ARGV[2] then
+    return ARGV[1] .. '\t' .. old
+end
+return false
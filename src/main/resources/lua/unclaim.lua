@@ -0,0 +1,7 @@
+-- Releases a proxy's claim on a player who never finished logging in.
+-- KEYS[1] = online
+-- ARGV[1] = uuid, ARGV[2] = proxy
+if redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2] then
+    return redis.call('hdel', KEYS[1], ARGV[1])
+end
+return 0
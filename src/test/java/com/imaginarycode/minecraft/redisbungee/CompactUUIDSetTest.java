@@ -0,0 +1,144 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompactUUIDSetTest {
+    private static final UUID NIL = new UUID(0, 0);
+
+    private static List<UUID> randomUuids(int count) {
+        Random random = new Random(count);
+        List<UUID> uuids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            uuids.add(new UUID(random.nextLong(), random.nextLong()));
+        return uuids;
+    }
+
+    @Test
+    public void testEmpty() {
+        CompactUUIDSet set = CompactUUIDSet.copyOf(Collections.<UUID>emptySet());
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(NIL));
+        assertFalse(set.iterator().hasNext());
+        assertEquals(Collections.emptySet(), set);
+    }
+
+    @Test
+    public void testNilUuid() {
+        UUID other = UUID.randomUUID();
+        CompactUUIDSet set = CompactUUIDSet.copyOf(Arrays.asList(NIL, other, NIL));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(NIL));
+        assertTrue(set.contains(other));
+        assertEquals(new HashSet<>(Arrays.asList(NIL, other)), new HashSet<>(set));
+
+        CompactUUIDSet onlyNil = CompactUUIDSet.copyOf(Collections.singleton(NIL));
+        assertEquals(1, onlyNil.size());
+        Iterator<UUID> it = onlyNil.iterator();
+        assertEquals(NIL, it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testDuplicates() {
+        UUID uuid = UUID.randomUUID();
+        CompactUUIDSet set = CompactUUIDSet.copyOf(Arrays.asList(uuid, new UUID(uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits()), uuid));
+        assertEquals(1, set.size());
+        assertEquals(Collections.singleton(uuid), set);
+    }
+
+    @Test
+    public void testContains() {
+        List<UUID> uuids = randomUuids(1000);
+        CompactUUIDSet set = CompactUUIDSet.copyOf(uuids);
+        for (UUID uuid : uuids)
+            assertTrue(set.contains(uuid));
+        for (UUID uuid : randomUuids(999))
+            assertFalse(set.contains(uuid));
+        assertFalse(set.contains(NIL));
+        assertFalse(set.contains(uuids.get(0).toString()));
+        assertFalse(set.contains(null));
+    }
+
+    @Test
+    public void testGrowsPastExpectedSize() {
+        // A concurrent collection may grow while it is copied, so the set must not trust the size it was given.
+        final List<UUID> uuids = randomUuids(5000);
+        Collection<UUID> underreported = new AbstractCollection<UUID>() {
+            @Override
+            public Iterator<UUID> iterator() {
+                return uuids.iterator();
+            }
+
+            @Override
+            public int size() {
+                return 1;
+            }
+        };
+        CompactUUIDSet set = CompactUUIDSet.copyOf(underreported);
+        assertEquals(uuids.size(), set.size());
+        for (UUID uuid : uuids)
+            assertTrue(set.contains(uuid));
+        assertEquals(new HashSet<>(uuids), set);
+    }
+
+    @Test
+    public void testCollidingUuids() {
+        // Name-based UUIDs that differ only in a few bits must still land in distinct slots.
+        List<UUID> uuids = new ArrayList<>();
+        for (long i = 1; i <= 2000; i++)
+            uuids.add(new UUID(i, i));
+        CompactUUIDSet set = CompactUUIDSet.copyOf(uuids);
+        assertEquals(uuids.size(), set.size());
+        assertEquals(new HashSet<>(uuids), set);
+    }
+
+    @Test
+    public void testEqualsAndHashCodeMatchHashSet() {
+        for (int size : new int[]{1, 2, 3, 17, 1000}) {
+            List<UUID> uuids = randomUuids(size);
+            uuids.add(NIL);
+            Set<UUID> expected = new HashSet<>(uuids);
+            CompactUUIDSet set = CompactUUIDSet.copyOf(uuids);
+            assertEquals(expected, set);
+            assertEquals(set, expected);
+            assertEquals(expected.hashCode(), set.hashCode());
+            assertEquals(CompactUUIDSet.copyOf(expected), set);
+
+            expected.remove(uuids.get(0));
+            assertNotEquals(expected, set);
+            assertNotEquals(set, expected);
+        }
+    }
+
+    @Test
+    public void testIterator() {
+        List<UUID> uuids = randomUuids(100);
+        uuids.add(NIL);
+        Iterator<UUID> it = CompactUUIDSet.copyOf(uuids).iterator();
+        Set<UUID> seen = new HashSet<>();
+        while (it.hasNext())
+            assertTrue(seen.add(it.next()));
+        assertEquals(new HashSet<>(uuids), seen);
+        try {
+            it.next();
+            fail();
+        } catch (NoSuchElementException ignored) {
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        CompactUUIDSet.copyOf(randomUuids(10)).add(UUID.randomUUID());
+    }
+}
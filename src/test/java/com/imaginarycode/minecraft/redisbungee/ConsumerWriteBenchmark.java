@@ -0,0 +1,134 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import org.openjdk.jmh.annotations.*;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what the consumer sends to Redis for each player who logs in, switches server once and logs out:
+ * <ul>
+ * <li>{@link #perEventCommands()}: one round trip or more per event, as before batching.</li>
+ * <li>{@link #batchedCommands()}: the same commands, but the whole batch in one pipeline.</li>
+ * <li>{@link #batchedScripts()}: one script call per transition, the whole batch in one pipeline, as now. The scripts
+ * also keep the backend index and the online claims, which the plain commands never did.</li>
+ * </ul>
+ * Needs a Redis server to talk to, given as {@code -Dredisbungee.benchmark.redis=host:port} (localhost:6379 by default).
+ * Every key it writes starts with {@value #PREFIX} and is deleted again afterwards, but do not point it at a live
+ * network anyway.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsumerWriteBenchmark {
+    private static final String PREFIX = "redisbungee-benchmark:";
+    private static final String PROXY = "benchmark";
+    private static final int BATCH = 500;
+
+    private Jedis jedis;
+    private String usersOnline;
+    private String online;
+    private String uuids;
+    private String[] members;
+    private String[] players;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        String[] address = System.getProperty("redisbungee.benchmark.redis", "localhost:6379").split(":");
+        jedis = new Jedis(address[0], Integer.parseInt(address[1]));
+        usersOnline = PREFIX + RedisKeys.usersOnline(PROXY);
+        online = PREFIX + RedisKeys.ONLINE;
+        uuids = PREFIX + RedisKeys.UUIDS;
+        members = new String[BATCH];
+        players = new String[BATCH];
+        names = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            members[i] = UUID.randomUUID().toString();
+            players[i] = PREFIX + RedisKeys.player(members[i]);
+            names[i] = "Player" + i;
+        }
+        // Have Redis cache the scripts, so that the measured runs only use EVALSHA.
+        Pipeline pipeline = jedis.pipelined();
+        queueScripts(pipeline, 0, true);
+        pipeline.sync();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Set<String> keys = jedis.keys(PREFIX + "*");
+        if (!keys.isEmpty())
+            jedis.del(keys.toArray(new String[keys.size()]));
+        jedis.disconnect();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void perEventCommands() {
+        for (int i = 0; i < BATCH; i++) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.sadd(usersOnline, members[i]);
+            pipeline.hset(players[i], "online", "0");
+            pipeline.hset(players[i], "ip", "127.0.0.1");
+            pipeline.hset(players[i], "name", names[i]);
+            pipeline.hset(uuids, names[i].toLowerCase(), members[i]);
+            pipeline.sync();
+            jedis.hset(players[i], "server", "hub");
+            jedis.hset(players[i], "online", String.valueOf(System.currentTimeMillis()));
+            pipeline = jedis.pipelined();
+            pipeline.srem(usersOnline, members[i]);
+            pipeline.hdel(players[i], "server");
+            pipeline.hdel(players[i], "ip");
+            pipeline.sync();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batchedCommands() {
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < BATCH; i++) {
+            pipeline.sadd(usersOnline, members[i]);
+            pipeline.hset(players[i], "online", "0");
+            pipeline.hset(players[i], "ip", "127.0.0.1");
+            pipeline.hset(players[i], "name", names[i]);
+            pipeline.hset(uuids, names[i].toLowerCase(), members[i]);
+            pipeline.hset(players[i], "server", "hub");
+            pipeline.hset(players[i], "online", String.valueOf(System.currentTimeMillis()));
+            pipeline.srem(usersOnline, members[i]);
+            pipeline.hdel(players[i], "server");
+            pipeline.hdel(players[i], "ip");
+        }
+        pipeline.sync();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void batchedScripts() {
+        Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < BATCH; i++)
+            queueScripts(pipeline, i, false);
+        pipeline.sync();
+    }
+
+    private void queueScripts(Pipeline pipeline, int i, boolean eval) {
+        String backend = PREFIX + RedisKeys.backend("hub");
+        RedisUtil.LOGIN_SCRIPT.queue(pipeline, eval, 4, usersOnline, players[i], uuids, online,
+                members[i], names[i], names[i].toLowerCase(), "127.0.0.1", PROXY);
+        RedisUtil.SWITCH_SCRIPT.queue(pipeline, eval, 2, players[i], backend, members[i], "hub");
+        RedisUtil.LOGOUT_SCRIPT.queue(pipeline, eval, 4, usersOnline, players[i], online, backend,
+                members[i], String.valueOf(System.currentTimeMillis()), PROXY, "hub");
+    }
+}
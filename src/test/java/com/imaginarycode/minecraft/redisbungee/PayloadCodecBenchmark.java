@@ -0,0 +1,74 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Compares publishing a payload on a binary channel, raw and Deflated, against the Base64 string path plugins used
+ * before. Each benchmark covers one encode on the sender and one decode on the receiver. Run with {@code -prof gc} to
+ * see the allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadCodecBenchmark {
+    @Param({"256", "4096", "65536"})
+    private int size;
+
+    /**
+     * Text-like payloads, which compress well, or random ones, which do not.
+     */
+    @Param({"true", "false"})
+    private boolean compressible;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        if (compressible) {
+            byte[] text = Strings.repeat("{\"slot\":12,\"item\":\"diamond_sword\",\"count\":1}", size / 40 + 1)
+                    .getBytes(Charsets.UTF_8);
+            payload = new byte[size];
+            System.arraycopy(text, 0, payload, 0, size);
+        } else {
+            payload = new byte[size];
+            new Random(size).nextBytes(payload);
+        }
+    }
+
+    private String stringPath() {
+        return BaseEncoding.base64().encode(payload);
+    }
+
+    @Benchmark
+    public byte[] string() {
+        // What Jedis writes for a String message, and what the receiver has to undo.
+        byte[] wire = stringPath().getBytes(Charsets.UTF_8);
+        return BaseEncoding.base64().decode(new String(wire, Charsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] binaryRaw() throws DataFormatException {
+        return PayloadCodec.decode(PayloadCodec.encode(payload, 0));
+    }
+
+    @Benchmark
+    public byte[] binaryDeflate() throws DataFormatException {
+        return PayloadCodec.decode(PayloadCodec.encode(payload, 1));
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+    private static final byte[] COMPRESSIBLE = Strings.repeat("inventory:diamond_sword;", 200).getBytes(Charsets.UTF_8);
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testRawBelowThreshold() throws DataFormatException {
+        byte[] payload = "hello".getBytes(Charsets.UTF_8);
+        byte[] data = PayloadCodec.encode(payload, 1024);
+        assertEquals(PayloadCodec.RAW, data[0]);
+        assertEquals(payload.length + 1, data.length);
+        assertArrayEquals(payload, PayloadCodec.decode(data));
+    }
+
+    @Test
+    public void testNeverCompressesWithoutThreshold() throws DataFormatException {
+        byte[] data = PayloadCodec.encode(COMPRESSIBLE, 0);
+        assertEquals(PayloadCodec.RAW, data[0]);
+        assertArrayEquals(COMPRESSIBLE, PayloadCodec.decode(data));
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws DataFormatException {
+        byte[] data = PayloadCodec.encode(COMPRESSIBLE, 1024);
+        assertEquals(PayloadCodec.DEFLATE, data[0]);
+        assertTrue(data.length < COMPRESSIBLE.length);
+        assertArrayEquals(COMPRESSIBLE, PayloadCodec.decode(data));
+        assertArrayEquals(COMPRESSIBLE, PayloadCodec.decode(PayloadCodec.encode(COMPRESSIBLE, 1024)));
+    }
+
+    @Test
+    public void testIncompressibleStaysRaw() throws DataFormatException {
+        byte[] payload = random(4096);
+        byte[] data = PayloadCodec.encode(payload, 1024);
+        assertEquals(PayloadCodec.RAW, data[0]);
+        assertArrayEquals(payload, PayloadCodec.decode(data));
+    }
+
+    @Test
+    public void testEmptyPayload() throws DataFormatException {
+        assertArrayEquals(new byte[0], PayloadCodec.decode(PayloadCodec.encode(new byte[0], 1)));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testEmptyMessage() throws DataFormatException {
+        PayloadCodec.decode(new byte[0]);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testUnknownEncoding() throws DataFormatException {
+        PayloadCodec.decode(new byte[]{42, 1, 2, 3});
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testTruncatedHeader() throws DataFormatException {
+        PayloadCodec.decode(new byte[]{PayloadCodec.DEFLATE, 0, 0});
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testOversizedLength() throws DataFormatException {
+        PayloadCodec.decode(new byte[]{PayloadCodec.DEFLATE, 0x7F, 0, 0, 0, 0});
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testTruncatedPayload() throws DataFormatException {
+        byte[] data = PayloadCodec.encode(COMPRESSIBLE, 1024);
+        byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        PayloadCodec.decode(truncated);
+    }
+}
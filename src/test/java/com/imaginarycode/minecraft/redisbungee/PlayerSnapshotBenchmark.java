@@ -0,0 +1,97 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a network-wide player snapshot built as a {@link CompactUUIDSet} against the {@link ImmutableSet} that
+ * {@code getPlayers()} used to build, including the old path that parsed every member of the Redis sets. Run with
+ * {@code -prof gc} to see the allocation per snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlayerSnapshotBenchmark {
+    @Param({"1000", "20000"})
+    private int players;
+
+    private List<String> members;
+    private Set<UUID> live;
+    private ImmutableSet<UUID> immutable;
+    private CompactUUIDSet compact;
+    private UUID[] probes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(players);
+        members = new ArrayList<>(players);
+        live = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<UUID, Boolean>());
+        for (int i = 0; i < players; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            members.add(uuid.toString());
+            live.add(uuid);
+        }
+        immutable = ImmutableSet.copyOf(live);
+        compact = CompactUUIDSet.copyOf(live);
+        // Half of the lookups hit, half miss.
+        probes = new UUID[1024];
+        Iterator<UUID> it = live.iterator();
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = i % 2 == 0 && it.hasNext() ? it.next() : new UUID(random.nextLong(), random.nextLong());
+    }
+
+    @Benchmark
+    public Set<UUID> buildFromRedisMembers() {
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (String member : members)
+            builder.add(UUID.fromString(member));
+        return builder.build();
+    }
+
+    @Benchmark
+    public Set<UUID> buildImmutableSet() {
+        return ImmutableSet.copyOf(live);
+    }
+
+    @Benchmark
+    public Set<UUID> buildCompactSet() {
+        return CompactUUIDSet.copyOf(live);
+    }
+
+    @Benchmark
+    public void containsImmutableSet(Blackhole blackhole) {
+        for (UUID probe : probes)
+            blackhole.consume(immutable.contains(probe));
+    }
+
+    @Benchmark
+    public void containsCompactSet(Blackhole blackhole) {
+        for (UUID probe : probes)
+            blackhole.consume(compact.contains(probe));
+    }
+
+    @Benchmark
+    public void iterateImmutableSet(Blackhole blackhole) {
+        for (UUID uuid : immutable)
+            blackhole.consume(uuid);
+    }
+
+    @Benchmark
+    public void iterateCompactSet(Blackhole blackhole) {
+        for (UUID uuid : compact)
+            blackhole.consume(uuid);
+    }
+}
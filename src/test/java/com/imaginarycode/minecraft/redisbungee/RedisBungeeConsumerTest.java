@@ -0,0 +1,102 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.imaginarycode.minecraft.redisbungee.consumerevents.ConsumerEvent;
+import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerChangedServerConsumerEvent;
+import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedInConsumerEvent;
+import com.imaginarycode.minecraft.redisbungee.consumerevents.PlayerLoggedOffConsumerEvent;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RedisBungeeConsumerTest {
+    private static final UUID PLAYER = UUID.randomUUID();
+    private static final UUID OTHER = UUID.randomUUID();
+
+    private static PlayerLoggedInConsumerEvent login(UUID uuid) {
+        return new PlayerLoggedInConsumerEvent(uuid, "player", "127.0.0.1");
+    }
+
+    private static PlayerChangedServerConsumerEvent change(UUID uuid, String previous, String next) {
+        return new PlayerChangedServerConsumerEvent(uuid, previous, next);
+    }
+
+    private static Deque<Object> coalesce(ConsumerEvent... events) {
+        Map<UUID, Deque<Object>> coalesced = RedisBungeeConsumer.coalesce(Arrays.asList(events));
+        assertEquals(Collections.singleton(PLAYER), coalesced.keySet());
+        return coalesced.get(PLAYER);
+    }
+
+    @Test
+    public void testSingleEventsPassThrough() {
+        PlayerLoggedInConsumerEvent login = login(PLAYER);
+        assertSame(login, coalesce(login).getFirst());
+        PlayerLoggedOffConsumerEvent logoff = new PlayerLoggedOffConsumerEvent(PLAYER, "hub");
+        assertSame(logoff, coalesce(logoff).getFirst());
+    }
+
+    @Test
+    public void testSwitchesCollapse() {
+        Deque<Object> events = coalesce(change(PLAYER, null, "hub"), change(PLAYER, "hub", "pvp"),
+                change(PLAYER, "pvp", "lobby"));
+        assertEquals(1, events.size());
+        PlayerChangedServerConsumerEvent event = (PlayerChangedServerConsumerEvent) events.getFirst();
+        assertNull(event.getPreviousServer());
+        assertEquals("lobby", event.getNewServer());
+    }
+
+    @Test
+    public void testLogoffDropsUnwrittenSwitch() {
+        Deque<Object> events = coalesce(change(PLAYER, "hub", "pvp"), new PlayerLoggedOffConsumerEvent(PLAYER, "pvp"));
+        assertEquals(1, events.size());
+        PlayerLoggedOffConsumerEvent event = (PlayerLoggedOffConsumerEvent) events.getFirst();
+        // The switch is never written, so Redis still has the player on the server they came from.
+        assertEquals("hub", event.getLastServer());
+    }
+
+    @Test
+    public void testLoginThenLogoffIsTransient() {
+        PlayerLoggedInConsumerEvent login = login(PLAYER);
+        Deque<Object> events = coalesce(login, new PlayerLoggedOffConsumerEvent(PLAYER, null));
+        assertEquals(1, events.size());
+        assertSame(login, ((RedisBungeeConsumer.TransientLogin) events.getFirst()).getLogin());
+    }
+
+    @Test
+    public void testLoginSwitchLogoffIsTransient() {
+        PlayerLoggedInConsumerEvent login = login(PLAYER);
+        Deque<Object> events = coalesce(login, change(PLAYER, null, "hub"), change(PLAYER, "hub", "pvp"),
+                new PlayerLoggedOffConsumerEvent(PLAYER, "pvp"));
+        assertEquals(1, events.size());
+        assertSame(login, ((RedisBungeeConsumer.TransientLogin) events.getFirst()).getLogin());
+    }
+
+    @Test
+    public void testLogoffThenLoginKeepsBoth() {
+        PlayerLoggedOffConsumerEvent logoff = new PlayerLoggedOffConsumerEvent(PLAYER, "hub");
+        PlayerLoggedInConsumerEvent login = login(PLAYER);
+        PlayerChangedServerConsumerEvent change = change(PLAYER, null, "hub");
+        Deque<Object> events = coalesce(logoff, login, change);
+        assertEquals(Arrays.<Object>asList(logoff, login, change), new ArrayList<>(events));
+    }
+
+    @Test
+    public void testPlayersAreIndependent() {
+        PlayerLoggedInConsumerEvent otherLogin = login(OTHER);
+        List<ConsumerEvent> batch = Arrays.<ConsumerEvent>asList(login(PLAYER), otherLogin,
+                new PlayerLoggedOffConsumerEvent(PLAYER, null), change(OTHER, null, "hub"));
+        Map<UUID, Deque<Object>> coalesced = RedisBungeeConsumer.coalesce(batch);
+        // Players keep the order in which they first appeared.
+        assertEquals(Arrays.asList(PLAYER, OTHER), new ArrayList<>(coalesced.keySet()));
+        assertTrue(coalesced.get(PLAYER).getFirst() instanceof RedisBungeeConsumer.TransientLogin);
+        assertEquals(2, coalesced.get(OTHER).size());
+        assertSame(otherLogin, coalesced.get(OTHER).getFirst());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright © 2013 tuxed <write@imaginarycode.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See http://www.wtfpl.net/ for more details.
+ */
+package com.imaginarycode.minecraft.redisbungee;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RedisKeysTest {
+    private static final List<UUID> UUIDS = Arrays.asList(
+            new UUID(0, 0),
+            new UUID(-1, -1),
+            new UUID(0x0000000100000001L, 0x000000000000000aL),
+            UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5"),
+            UUID.nameUUIDFromBytes("OfflinePlayer:tuxed".getBytes(Charsets.UTF_8)),
+            UUID.randomUUID());
+
+    @Test
+    public void testUuidBytes() {
+        for (UUID uuid : UUIDS)
+            assertArrayEquals(uuid.toString(), uuid.toString().getBytes(Charsets.UTF_8), RedisKeys.uuidBytes(uuid));
+    }
+
+    @Test
+    public void testPlayerBytes() {
+        for (UUID uuid : UUIDS) {
+            assertEquals("player:" + uuid, RedisKeys.player(uuid));
+            assertEquals(RedisKeys.player(uuid), RedisKeys.player(uuid.toString()));
+            assertArrayEquals(RedisKeys.player(uuid).getBytes(Charsets.UTF_8), RedisKeys.playerBytes(uuid));
+        }
+    }
+
+    @Test
+    public void testFreshArrays() {
+        UUID uuid = UUID.randomUUID();
+        assertNotSame(RedisKeys.playerBytes(uuid), RedisKeys.playerBytes(uuid));
+        assertNotSame(RedisKeys.uuidBytes(uuid), RedisKeys.uuidBytes(uuid));
+    }
+
+    @Test
+    public void testLease() {
+        assertEquals("proxy", RedisKeys.proxyFromLease(RedisKeys.lease("proxy")));
+        assertEquals("a:b", RedisKeys.proxyFromLease(RedisKeys.lease("a:b")));
+        assertNull(RedisKeys.proxyFromLease("proxy::lease"));
+        assertNull(RedisKeys.proxyFromLease("server:proxy:usersOnline"));
+        assertNull(RedisKeys.proxyFromLease(RedisKeys.player(UUID.randomUUID())));
+    }
+
+    @Test
+    public void testProxyKeys() {
+        RedisKeys keys = new RedisKeys("proxy");
+        assertEquals("proxy", keys.getServerId());
+        assertEquals(RedisKeys.usersOnline("proxy"), keys.getUsersOnline());
+        assertEquals(RedisKeys.lease("proxy"), keys.getLease());
+        assertEquals(RedisKeys.reconcileScratch("proxy"), keys.getReconcileScratch());
+    }
+}